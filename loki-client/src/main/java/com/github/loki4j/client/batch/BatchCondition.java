@@ -4,5 +4,6 @@ public enum BatchCondition {
     MAX_BYTES,
     MAX_ITEMS,
     DRAIN,
+    ADAPTIVE,
     UNKNOWN
 }
@@ -1,6 +1,10 @@
 package com.github.loki4j.client.batch;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.LongSupplier;
+
+import com.github.loki4j.client.util.LongIntHashMap;
 
 /**
  * A component that is responsible for splitting a stream of log events into batches.
@@ -13,24 +17,111 @@ import java.util.HashSet;
  *
  * <li> {@code maxTimeoutMs} - if this timeout is passed since the last batch was sended,
  * applies only when {@code drain()} is called
+ *
+ * <li> adaptive limits - if {@code targetLatencyMs} is set, the batch is also cut once
+ * it reaches the number of items expected to be appended between two sends at
+ * {@code targetSendRate}, or once its oldest record waits longer than
+ * {@code targetLatencyMs} minus the observed HTTP round-trip time.
+ * Both limits are re-estimated on each batch, so batches grow with the traffic
+ * and are sent quickly when the traffic is low
  * </ul>
+ * Records are grouped by stream as they are added, so the resulting batch always
+ * contains all the records of one stream next to each other, in the order they
+ * were added. If {@code sortByTime} is set, records within each stream are also
+ * ordered by timestamp. Only streams that received records out of order are sorted.
+ * <p>
  * This class is not thread-safe.
  */
 public final class Batcher {
 
+    private static final Comparator<LogRecord> compareByTime = (e1, e2) -> {
+        var tsCmp = Long.compare(e1.timestampMs, e2.timestampMs);
+        return tsCmp == 0 ? Integer.compare(e1.nanos, e2.nanos) : tsCmp;
+    };
+
     private final int maxSizeBytes;
     private final long maxTimeoutMs;
+    private final boolean sortByTime;
     private final LogRecord[] items;
 
+    /**
+     * Max time the oldest record should wait before it is sent, 0 if adaptive batching is disabled
+     */
+    private final long targetLatencyMs;
+    /**
+     * Number of batches per second adaptive batching tries to keep
+     */
+    private final double targetSendRate;
+    private final LongSupplier currentTimeMs;
+
+    /**
+     * Time the first record of the current batch was added
+     */
+    private long firstAddMs = 0L;
+    /**
+     * Moving average of the append rate in records per millisecond
+     */
+    private double appendRate = 0.0;
+    /**
+     * Moving average of HTTP round-trip time, reported by a sender thread
+     */
+    private volatile long roundTripMs = 0L;
+    private int adaptiveMaxItems;
+
+    /**
+     * Index of the next item of the same stream, -1 for the last one
+     */
+    private final int[] nextInStream;
+    /**
+     * Items grouped by stream, used to prepare the resulting batch
+     */
+    private final LogRecord[] grouped;
+
     private int index = 0;
     private int sizeBytes = 0;
-    private HashSet<LogRecordStream> streams = new HashSet<>();
+    /**
+     * Index of the segment for each stream id in the current batch
+     */
+    private final LongIntHashMap streams;
+    /**
+     * Segments in the order their streams were first added to the current batch.
+     * Segment objects are reused from batch to batch
+     */
+    private Segment[] segments = new Segment[16];
+    private int segmentCount = 0;
 
 
     public Batcher(int maxItems, int maxSizeBytes, long maxTimeoutMs) {
+        this(maxItems, maxSizeBytes, maxTimeoutMs, false);
+    }
+
+    public Batcher(int maxItems, int maxSizeBytes, long maxTimeoutMs, boolean sortByTime) {
+        this(maxItems, maxSizeBytes, maxTimeoutMs, sortByTime, 0L, 1.0);
+    }
+
+    /**
+     * @param targetLatencyMs Max time the oldest record should wait before it is sent,
+     * 0 disables adaptive batching
+     * @param targetSendRate Number of batches per second adaptive batching tries to keep
+     */
+    public Batcher(int maxItems, int maxSizeBytes, long maxTimeoutMs, boolean sortByTime,
+            long targetLatencyMs, double targetSendRate) {
+        this(maxItems, maxSizeBytes, maxTimeoutMs, sortByTime, targetLatencyMs, targetSendRate, System::currentTimeMillis);
+    }
+
+    Batcher(int maxItems, int maxSizeBytes, long maxTimeoutMs, boolean sortByTime,
+            long targetLatencyMs, double targetSendRate, LongSupplier currentTimeMs) {
         this.maxSizeBytes = maxSizeBytes;
         this.maxTimeoutMs = maxTimeoutMs;
+        this.sortByTime = sortByTime;
+        this.targetLatencyMs = targetLatencyMs;
+        this.targetSendRate = targetSendRate;
+        this.currentTimeMs = currentTimeMs;
+        this.adaptiveMaxItems = maxItems;
         this.items = new LogRecord[maxItems];
+        this.nextInStream = new int[maxItems];
+        this.grouped = new LogRecord[maxItems];
+        this.streams = new LongIntHashMap(maxItems);
     }
 
     /**
@@ -53,20 +144,96 @@ public final class Batcher {
      * never to be less that real size as counted by Loki, otherwise the message will be dropped
      * by Loki.
      */
-    private long estimateSizeBytes(LogRecord r, boolean dryRun) {
+    private static long estimateSizeBytes(LogRecord r, boolean newStream) {
         long size = r.messageUtf8SizeBytes + 24;
-        if (!streams.contains(r.stream)) {
+        if (newStream)
             size += r.stream.utf8SizeBytes + 8;
-            if (!dryRun) streams.add(r.stream);
-        }
         return size;
     }
 
+    /**
+     * Appends the item to the segment of its stream
+     *
+     * @param segmentIndex Index of the stream's segment, or -1 if this is a new stream
+     */
+    private void link(int itemIndex, int segmentIndex) {
+        var record = items[itemIndex];
+        nextInStream[itemIndex] = -1;
+        Segment segment;
+        if (segmentIndex < 0) {
+            streams.put(record.stream.id, segmentCount);
+            segment = nextSegment();
+            segment.head = itemIndex;
+        } else {
+            segment = segments[segmentIndex];
+            nextInStream[segment.tail] = itemIndex;
+            if (sortByTime && segment.sorted && compareByTime.compare(items[segment.tail], record) > 0)
+                segment.sorted = false;
+        }
+        segment.tail = itemIndex;
+        segment.count++;
+    }
+
+    private Segment nextSegment() {
+        if (segmentCount == segments.length)
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        var segment = segments[segmentCount];
+        if (segment == null) {
+            segment = new Segment();
+            segments[segmentCount] = segment;
+        }
+        segmentCount++;
+        segment.count = 0;
+        segment.sorted = true;
+        return segment;
+    }
+
     private void cutBatchAndReset(LogRecordBatch destination, BatchCondition condition) {
-        destination.initFrom(items, index, streams.size(), condition, sizeBytes);
+        if (targetLatencyMs > 0)
+            adapt();
+        var pos = 0;
+        for (int s = 0; s < segmentCount; s++) {
+            var segment = segments[s];
+            var from = pos;
+            for (int i = segment.head; i >= 0; i = nextInStream[i])
+                grouped[pos++] = items[i];
+            if (!segment.sorted)
+                Arrays.sort(grouped, from, pos, compareByTime);
+        }
+        destination.initFrom(grouped, index, segmentCount, condition, sizeBytes);
+        Arrays.fill(grouped, 0, index, null);
+        Arrays.fill(items, 0, index, null);
         index = 0;
         sizeBytes = 0;
         streams.clear();
+        segmentCount = 0;
+    }
+
+    /**
+     * Re-estimates adaptive limits based on the batch being cut
+     */
+    private void adapt() {
+        var elapsedMs = Math.max(1L, currentTimeMs.getAsLong() - firstAddMs);
+        var rate = (double) index / elapsedMs;
+        appendRate = appendRate == 0.0 ? rate : appendRate * 0.75 + rate * 0.25;
+        adaptiveMaxItems = (int) Math.max(1L, Math.min(items.length, Math.round(appendRate * 1000.0 / targetSendRate)));
+    }
+
+    /**
+     * Max time the oldest record of the batch can wait,
+     * so it reaches Loki within the target latency
+     */
+    private long adaptiveLingerMs() {
+        return Math.max(0L, Math.min(maxTimeoutMs, targetLatencyMs - roundTripMs));
+    }
+
+    /**
+     * Reports a time it took to send a batch to Loki, used by adaptive batching.
+     * This method is thread-safe, but it should not be called concurrently.
+     */
+    public void reportRoundTrip(long durationMs) {
+        var rtt = roundTripMs;
+        roundTripMs = rtt == 0L ? durationMs : (rtt * 3 + durationMs) / 4;
     }
 
     /**
@@ -82,7 +249,7 @@ public final class Batcher {
      * @param destination Resulting batch (if ready)
      */
     public void checkSizeBeforeAdd(LogRecord input, LogRecordBatch destination) {
-        var recordSizeBytes = estimateSizeBytes(input, true);
+        var recordSizeBytes = estimateSizeBytes(input, streams.get(input.stream.id) < 0);
         if (sizeBytes + recordSizeBytes > maxSizeBytes)
             cutBatchAndReset(destination, BatchCondition.MAX_BYTES);
     }
@@ -93,25 +260,63 @@ public final class Batcher {
      * @param destination Resulting batch (if ready)
      */
     public void add(LogRecord input, LogRecordBatch destination) {
+        var segmentIndex = streams.get(input.stream.id);
+        if (index == 0 && targetLatencyMs > 0)
+            firstAddMs = currentTimeMs.getAsLong();
         items[index] = input;
-        sizeBytes += estimateSizeBytes(input, false);
+        sizeBytes += estimateSizeBytes(input, segmentIndex < 0);
+        link(index, segmentIndex);
         if (++index == items.length)
             cutBatchAndReset(destination, BatchCondition.MAX_ITEMS);
+        else if (targetLatencyMs > 0 && index >= adaptiveMaxItems)
+            cutBatchAndReset(destination, BatchCondition.ADAPTIVE);
     }
 
     /**
-     * Returns a batch if max timeout since the last batch was sended
+     * Returns a batch if max timeout since the last batch was sended,
+     * or if adaptive linger time since the first record of the batch was added
      * @param lastSentMs Timestamp when the last batch was sended
      * @param destination Resulting batch (if ready)
      */
     public void drain(long lastSentMs, LogRecordBatch destination) {
-        final long now = System.currentTimeMillis();
-        if (index > 0 && now - lastSentMs > maxTimeoutMs)
+        if (index == 0)
+            return;
+        final long now = currentTimeMs.getAsLong();
+        if (now - lastSentMs > maxTimeoutMs)
             cutBatchAndReset(destination, BatchCondition.DRAIN);
+        else if (targetLatencyMs > 0 && now - firstAddMs >= adaptiveLingerMs())
+            cutBatchAndReset(destination, BatchCondition.ADAPTIVE);
+    }
+
+    /**
+     * Returns time in milliseconds left until the current batch should be drained,
+     * or {@code Long.MAX_VALUE} if there is nothing to drain
+     * @param lastSentMs Timestamp when the last batch was sended
+     */
+    public long drainDelayMs(long lastSentMs) {
+        if (index == 0)
+            return Long.MAX_VALUE;
+        var deadline = lastSentMs + maxTimeoutMs + 1;
+        if (targetLatencyMs > 0)
+            deadline = Math.min(deadline, firstAddMs + adaptiveLingerMs());
+        return Math.max(0L, deadline - currentTimeMs.getAsLong());
     }
 
     public int getCapacity() {
         return items.length;
     }
 
+    /**
+     * A chain of items that belong to the same stream
+     */
+    private static final class Segment {
+        int head;
+        int tail;
+        int count;
+        /**
+         * False if any item was added with timestamp less than the previous one
+         */
+        boolean sorted;
+    }
+
 }
@@ -3,7 +3,12 @@ package com.github.loki4j.client.batch;
 import java.nio.ByteBuffer;
 
 public class BinaryBatch {
-    
+
+    /**
+     * Index of the partition (i.e., encoder) this batch was produced by
+     */
+    public int partition;
+
     public long batchId;
 
     public int sizeItems;
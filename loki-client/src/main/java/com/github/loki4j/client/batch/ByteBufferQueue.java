@@ -2,65 +2,355 @@ package com.github.loki4j.client.batch;
 
 import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 import com.github.loki4j.client.util.ByteBufferFactory;
 
-public class ByteBufferQueue {
+/**
+ * A bounded queue of binary batches waiting to be sent.
+ * <p>
+ * Buffers of the batches returned after sending are kept in a pool
+ * for reuse. Buffer capacities are rounded up to a power of two, and
+ * each size class has its own list of free buffers.
+ * <p>
+ * The size of the queue is measured by the capacity of the buffers,
+ * not by the size of the batches in them. The total capacity of the
+ * queued and pooled buffers together never exceeds the max size of the
+ * queue: pooled buffers are released to make room for new batches, and
+ * a batch gets a buffer of its exact size if a rounded one does not fit.
+ * <p>
+ * All the methods are thread-safe. Several producers can add batches
+ * concurrently, space for each batch is reserved before it is written,
+ * so the max size of the queue is never exceeded.
+ */
+public class ByteBufferQueue implements SendQueue {
 
-    private final ConcurrentLinkedQueue<BinaryBatch> pool = new ConcurrentLinkedQueue<>();
+    /**
+     * The smallest pooled buffer is 4 KB
+     */
+    private static final int MIN_SIZE_CLASS = 12;
 
+    /**
+     * The largest pooled buffer is 1 GB, larger buffers are not pooled
+     */
+    private static final int MAX_SIZE_CLASS = 30;
+
+    /**
+     * Free batches by size class, capacity of the buffers in the
+     * list {@code i} is {@code 1 << (i + MIN_SIZE_CLASS)}
+     */
+    private final ConcurrentLinkedQueue<BinaryBatch>[] pool;
+
+    /**
+     * Total capacity of the buffers in the pool
+     */
+    private final AtomicLong poolSizeBytes = new AtomicLong(0L);
+
+    private final AtomicLong poolHits = new AtomicLong(0L);
+    private final AtomicLong poolMisses = new AtomicLong(0L);
+
+    /**
+     * Total capacity of the buffers in the queue
+     */
     private final AtomicLong sizeBytes = new AtomicLong(0L);
 
+    /**
+     * Total capacity of the buffers in the queue and in the pool,
+     * space for each buffer is reserved here before it is added to either of them
+     */
+    private final AtomicLong reservedBytes = new AtomicLong(0L);
+
     private final ConcurrentLinkedQueue<BinaryBatch> items = new ConcurrentLinkedQueue<>();
 
+    /**
+     * Number of consumer threads waiting for new items.
+     * Producers take the lock to wake them up only if this number is not zero
+     */
+    private final AtomicInteger waitingConsumers = new AtomicInteger(0);
+
+    /**
+     * Number of producer threads waiting for free space.
+     * Consumers take the lock to wake them up only if this number is not zero
+     */
+    private final AtomicInteger waitingProducers = new AtomicInteger(0);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
     private final long maxSizeBytes;
     private final ByteBufferFactory bufferFactory;
 
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public ByteBufferQueue(long maxSizeBytes, ByteBufferFactory bufferFactory) {
         this.maxSizeBytes = maxSizeBytes;
         this.bufferFactory = bufferFactory;
+        this.pool = new ConcurrentLinkedQueue[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+        for (int i = 0; i < pool.length; i++)
+            pool[i] = new ConcurrentLinkedQueue<>();
     }
 
-    public boolean offer(long batchId, int itemsCount, int claimBytes, Consumer<ByteBuffer> write) {
-        if (sizeBytes.get() + claimBytes > maxSizeBytes)
-            return false;
-        sizeBytes.addAndGet(claimBytes);
-
-        var batch = pool.poll();
+    @Override
+    public boolean offer(int partition, long batchId, int itemsCount, int claimBytes, Consumer<ByteBuffer> write) {
+        var batch = takeFromPool(claimBytes);
         if (batch == null)
-            batch = new BinaryBatch();
-        if (batch.data == null || batch.data.capacity() <= claimBytes)
-            batch.data = bufferFactory.allocate(claimBytes + claimBytes / 2);
+            return false;
+        var capacity = batch.data.capacity();
+        sizeBytes.addAndGet(capacity);
+        batch.partition = partition;
         batch.batchId = batchId;
         batch.sizeItems = itemsCount;
         batch.sizeBytes = claimBytes;
         batch.data.clear();
-        write.accept(batch.data);
+        try {
+            write.accept(batch.data);
+        } catch (RuntimeException e) {
+            sizeBytes.addAndGet(-capacity);
+            reservedBytes.addAndGet(-capacity);
+            spaceFreed();
+            returnBuffer(batch);
+            throw e;
+        }
         items.offer(batch);
+        if (waitingConsumers.get() > 0)
+            wakeUpConsumers(false);
 
         return true;
     }
 
+    /**
+     * Reserves space for a new buffer, so concurrent producers
+     * can never exceed the max size of the queue together
+     */
+    private boolean reserve(int capacity) {
+        long current;
+        do {
+            current = reservedBytes.get();
+            if (current + capacity > maxSizeBytes)
+                return false;
+        } while (!reservedBytes.compareAndSet(current, current + capacity));
+        return true;
+    }
+
+    /**
+     * Reserves space for a new buffer, releasing pooled buffers if needed
+     */
+    private boolean reserveOrShrinkPool(int capacity) {
+        while (!reserve(capacity)) {
+            if (!releaseFromPool())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Leaves one of the pooled buffers to GC, the largest one goes first
+     *
+     * @return false if the pool is empty
+     */
+    private boolean releaseFromPool() {
+        for (int i = pool.length - 1; i >= 0; i--) {
+            var batch = pool[i].poll();
+            if (batch != null) {
+                var capacity = batch.data.capacity();
+                poolSizeBytes.addAndGet(-capacity);
+                reservedBytes.addAndGet(-capacity);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void awaitSpace(int claimBytes, long timeoutNs) throws InterruptedException {
+        lock.lock();
+        try {
+            // consumers check the counter after freeing some space,
+            // so either they see we are waiting, or we see the free space
+            waitingProducers.incrementAndGet();
+            if (sizeBytes.get() + claimBytes <= maxSizeBytes)
+                return;
+            if (timeoutNs == Long.MAX_VALUE)
+                notFull.await();
+            else
+                notFull.await(timeoutNs, TimeUnit.NANOSECONDS);
+        } finally {
+            waitingProducers.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void wakeUpProducers() {
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void spaceFreed() {
+        if (waitingProducers.get() > 0)
+            wakeUpProducers();
+    }
+
+    @Override
     public BinaryBatch borrowBuffer() {
         var batch = items.poll();
-        if (batch != null)
-            sizeBytes.addAndGet(-batch.sizeBytes);
+        if (batch != null) {
+            // a buffer being sent is not counted until it is returned to the pool
+            var capacity = batch.data.capacity();
+            sizeBytes.addAndGet(-capacity);
+            reservedBytes.addAndGet(-capacity);
+            spaceFreed();
+        }
         return batch;
     }
 
+    /**
+     * Blocks the calling consumer thread until the queue is not empty,
+     * the timeout expires, or {@code wakeUpConsumers()} is called.
+     * Several consumer threads can wait at the same time.
+     *
+     * @param timeoutNs Max time to wait in nanoseconds,
+     * {@code Long.MAX_VALUE} means wait without timeout
+     */
+    @Override
+    public void awaitNotEmpty(long timeoutNs) throws InterruptedException {
+        lock.lock();
+        try {
+            // producers check the counter after adding a new item,
+            // so either they see we are waiting, or we see their item
+            waitingConsumers.incrementAndGet();
+            if (!items.isEmpty())
+                return;
+            if (timeoutNs == Long.MAX_VALUE)
+                notEmpty.await();
+            else
+                notEmpty.await(timeoutNs, TimeUnit.NANOSECONDS);
+        } finally {
+            waitingConsumers.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up all the consumer threads waiting in {@code awaitNotEmpty()}
+     */
+    @Override
+    public void wakeUpConsumers() {
+        wakeUpConsumers(true);
+    }
+
+    private void wakeUpConsumers(boolean all) {
+        lock.lock();
+        try {
+            if (all)
+                notEmpty.signalAll();
+            else
+                notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the batch taken by {@code borrowBuffer()} back to the queue.
+     * Its buffer is kept for reuse if there is enough space in the queue
+     */
+    @Override
     public void returnBuffer(BinaryBatch batch) {
-        if (!pool.isEmpty())
+        var capacity = batch.data.capacity();
+        var sizeClass = sizeClassOf(capacity);
+        if (sizeClass < 0 || (1 << sizeClass) != capacity)
+            return;
+        // if there is no space, leave this buffer to GC
+        if (!reserve(capacity))
             return;
-        pool.offer(batch);
+        poolSizeBytes.addAndGet(capacity);
+        pool[sizeClass - MIN_SIZE_CLASS].offer(batch);
+    }
+
+    /**
+     * Takes a buffer for a new batch from the pool, or allocates a new one
+     *
+     * @return A batch with the buffer, or null if there is no space in the queue
+     */
+    private BinaryBatch takeFromPool(int claimBytes) {
+        var sizeClass = sizeClassOf(claimBytes);
+        var batch = sizeClass < 0 ? null : pool[sizeClass - MIN_SIZE_CLASS].poll();
+        if (batch != null) {
+            // space for the pooled buffer is already reserved
+            poolSizeBytes.addAndGet(-batch.data.capacity());
+            poolHits.incrementAndGet();
+            return batch;
+        }
+        var capacity = sizeClass < 0 ? claimBytes : 1 << sizeClass;
+        if (!reserveOrShrinkPool(capacity)) {
+            // a buffer of the exact size is not pooled, but it might still fit
+            if (capacity == claimBytes || !reserveOrShrinkPool(claimBytes))
+                return null;
+            capacity = claimBytes;
+        }
+        poolMisses.incrementAndGet();
+        batch = new BinaryBatch();
+        batch.data = bufferFactory.allocate(capacity);
+        return batch;
+    }
+
+    /**
+     * Returns a size class for the buffer of the given capacity,
+     * or -1 if such buffers are not pooled
+     */
+    private static int sizeClassOf(int capacity) {
+        if (capacity <= 1 << MIN_SIZE_CLASS)
+            return MIN_SIZE_CLASS;
+        var sizeClass = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return sizeClass <= MAX_SIZE_CLASS ? sizeClass : -1;
     }
 
+    @Override
     public long getSizeBytes() {
         return sizeBytes.get();
     }
 
+    @Override
+    public long getMaxSizeBytes() {
+        return maxSizeBytes;
+    }
+
+    /**
+     * Total capacity of the buffers kept in the pool for reuse.
+     * Together with the size of the queue, it never exceeds the max size of the queue
+     */
+    public long getPoolSizeBytes() {
+        return poolSizeBytes.get();
+    }
+
+    /**
+     * Number of times a buffer for a new batch was taken from the pool
+     */
+    public long getPoolHitCount() {
+        return poolHits.get();
+    }
+
+    /**
+     * Number of times a buffer for a new batch had to be allocated
+     */
+    public long getPoolMissCount() {
+        return poolMisses.get();
+    }
+
     int poolSize() {
-        return pool.size();
+        var size = 0;
+        for (var sizeClass : pool)
+            size += sizeClass.size();
+        return size;
     }
 }
@@ -1,5 +1,8 @@
 package com.github.loki4j.client.batch;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import com.github.loki4j.client.util.StringUtils;
 
 public class LogRecord {
@@ -10,20 +13,47 @@ public class LogRecord {
 
     public final LogRecordStream stream;
 
+    /**
+     * Message of the record, null if the record is created from UTF-8 bytes
+     */
     public final String message;
 
+    /**
+     * Message of the record pre-encoded in UTF-8,
+     * null if the record is created from a string or its message is kept off-heap
+     */
+    public final byte[] messageUtf8;
+
     public final int messageUtf8SizeBytes;
 
+    /**
+     * An off-heap arena segment holding the UTF-8 message of the record,
+     * null if the message is kept on heap
+     */
+    public final LogRecordArena.Segment segment;
+
+    /**
+     * Offset of the message within the arena segment
+     */
+    public final int messageOffset;
+
     private LogRecord(
             long timestamp,
             int nanos,
             LogRecordStream stream,
-            String message) {
+            String message,
+            byte[] messageUtf8,
+            int messageUtf8SizeBytes,
+            LogRecordArena.Segment segment,
+            int messageOffset) {
         this.timestampMs = timestamp;
         this.nanos = nanos;
         this.stream = stream;
         this.message = message;
-        this.messageUtf8SizeBytes = StringUtils.utf8Length(message);
+        this.messageUtf8 = messageUtf8;
+        this.messageUtf8SizeBytes = messageUtf8SizeBytes;
+        this.segment = segment;
+        this.messageOffset = messageOffset;
     }
 
     public static LogRecord create(
@@ -31,14 +61,54 @@ public class LogRecord {
             int nanos,
             LogRecordStream stream,
             String message) {
-        return new LogRecord(timestamp, nanos, stream, message);
+        return new LogRecord(timestamp, nanos, stream, message, null, StringUtils.utf8Length(message), null, 0);
+    }
+
+    /**
+     * Creates a record with the message already encoded in UTF-8.
+     * Writers copy such messages as is without encoding them again
+     */
+    public static LogRecord createUtf8(
+            long timestamp,
+            int nanos,
+            LogRecordStream stream,
+            byte[] messageUtf8) {
+        return new LogRecord(timestamp, nanos, stream, null, messageUtf8, messageUtf8.length, null, 0);
+    }
+
+    /**
+     * Creates a record with the UTF-8 message stored in the off-heap arena segment
+     */
+    static LogRecord createOffHeap(
+            long timestamp,
+            int nanos,
+            LogRecordStream stream,
+            LogRecordArena.Segment segment,
+            int messageOffset,
+            int messageUtf8SizeBytes) {
+        return new LogRecord(timestamp, nanos, stream, null, null, messageUtf8SizeBytes, segment, messageOffset);
+    }
+
+    /**
+     * Returns the message of the record as a string
+     * regardless of how it was created
+     */
+    public String messageString() {
+        if (message != null)
+            return message;
+        if (messageUtf8 != null)
+            return new String(messageUtf8, StandardCharsets.UTF_8);
+        var bytes = new byte[messageUtf8SizeBytes];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = segment.buffer.get(messageOffset + i);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     @Override
     public String toString() {
         return "LogRecord [ts=" + timestampMs +
             ", stream=" + stream +
-            ", message=" + message + "]";
+            ", message=" + messageString() + "]";
     }
 
 	@Override
@@ -46,6 +116,9 @@ public class LogRecord {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((message == null) ? 0 : message.hashCode());
+		result = prime * result + Arrays.hashCode(messageUtf8);
+		result = prime * result + System.identityHashCode(segment);
+		result = prime * result + messageOffset;
 		result = prime * result + ((stream == null) ? 0 : stream.hashCode());
 		result = prime * result + (int) (timestampMs ^ (timestampMs >>> 32));
 		return result;
@@ -65,6 +138,10 @@ public class LogRecord {
 				return false;
 		} else if (!message.equals(other.message))
 			return false;
+		if (!Arrays.equals(messageUtf8, other.messageUtf8))
+			return false;
+		if (segment != other.segment || messageOffset != other.messageOffset)
+			return false;
 		if (stream == null) {
 			if (other.stream != null)
 				return false;
@@ -0,0 +1,179 @@
+package com.github.loki4j.client.batch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * An off-heap storage for UTF-8 messages of log records waiting to be encoded.
+ * <p>
+ * Messages are appended one after another to segments backed by direct
+ * byte buffers. Each segment counts its live records, and it is reused
+ * once all of them are released. Segments are allocated on demand up to
+ * the configured capacity and are never freed afterwards.
+ * <p>
+ * If there is no free space for a message, no record is created, so the
+ * caller can keep this message on heap instead.
+ * <p>
+ * Methods {@code create()} and {@code release()} are thread-safe.
+ * All the records of an arena must be encoded by a single thread.
+ */
+public final class LogRecordArena {
+
+    public static final int DEFAULT_SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    private final int segmentSizeBytes;
+    private final int maxSegments;
+
+    /**
+     * Segments with no live records, guarded by {@code this}
+     */
+    private final ArrayDeque<Segment> free = new ArrayDeque<>();
+
+    /**
+     * A segment new messages are appended to, guarded by {@code this}
+     */
+    private Segment current;
+
+    private int segmentsCount = 0;
+
+    /**
+     * Number of bytes taken by the live records
+     */
+    private volatile long sizeBytes = 0L;
+
+    /**
+     * @param capacityBytes Max number of bytes to allocate for all the segments
+     * @param segmentSizeBytes Size of a single segment,
+     * messages larger than that are never stored in the arena
+     */
+    public LogRecordArena(long capacityBytes, int segmentSizeBytes) {
+        if (segmentSizeBytes < 1)
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSizeBytes);
+        this.segmentSizeBytes = (int) Math.min(segmentSizeBytes, Math.max(capacityBytes, 1L));
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, Math.max(capacityBytes / this.segmentSizeBytes, 1L));
+    }
+
+    /**
+     * Creates a new record with the message copied to the arena
+     *
+     * @return A new record, or null if there is no free space for the message
+     */
+    public LogRecord create(long timestamp, int nanos, LogRecordStream stream, byte[] messageUtf8) {
+        var len = messageUtf8.length;
+        if (len > segmentSizeBytes)
+            return null;
+        synchronized (this) {
+            var segment = current;
+            if (segment == null || segment.position + len > segmentSizeBytes) {
+                segment = nextSegment();
+                if (segment == null)
+                    return null;
+            }
+            var offset = segment.position;
+            segment.writer.position(offset);
+            segment.writer.put(messageUtf8, 0, len);
+            segment.position = offset + len;
+            segment.liveRecords++;
+            sizeBytes = sizeBytes + len;
+            return LogRecord.createOffHeap(timestamp, nanos, stream, segment, offset, len);
+        }
+    }
+
+    /**
+     * Releases the space taken by the record, so it can be reused for new records.
+     * Records that are not stored in the arena are ignored
+     */
+    public synchronized void release(LogRecord record) {
+        releaseRecord(record);
+    }
+
+    /**
+     * Releases the space taken by all the records of the batch
+     */
+    public synchronized void release(LogRecordBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            releaseRecord(batch.get(i));
+    }
+
+    /**
+     * Number of bytes taken by the records that are not released yet
+     */
+    public long sizeBytes() {
+        return sizeBytes;
+    }
+
+    public long capacityBytes() {
+        return (long) segmentSizeBytes * maxSegments;
+    }
+
+    private void releaseRecord(LogRecord record) {
+        var segment = record.segment;
+        if (segment == null)
+            return;
+        sizeBytes = sizeBytes - record.messageUtf8SizeBytes;
+        if (--segment.liveRecords == 0 && segment != current) {
+            segment.position = 0;
+            free.offer(segment);
+        }
+    }
+
+    private Segment nextSegment() {
+        if (current != null && current.liveRecords == 0) {
+            // all the records are released, start over from the beginning
+            current.position = 0;
+            return current;
+        }
+        var segment = free.poll();
+        if (segment == null) {
+            if (segmentsCount == maxSegments)
+                return null;
+            segment = new Segment(ByteBuffer.allocateDirect(segmentSizeBytes));
+            segmentsCount++;
+        }
+        // the old segment goes to the free list once its last record is released
+        current = segment;
+        return segment;
+    }
+
+    /**
+     * A chunk of off-heap memory holding messages of several records
+     */
+    public static final class Segment {
+        /**
+         * A buffer with the messages, only absolute reads are allowed
+         */
+        public final ByteBuffer buffer;
+
+        /**
+         * A view used for copying messages in, guarded by the arena
+         */
+        private final ByteBuffer writer;
+
+        /**
+         * A view used for reading messages, accessed only from the encoder thread
+         */
+        private final ByteBuffer reader;
+
+        private int position = 0;
+        private int liveRecords = 0;
+
+        private Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+            this.reader = buffer.duplicate();
+        }
+
+        /**
+         * Returns a view of the given range of the segment.
+         * The view is reused between calls, so this method
+         * must be called only from the encoder thread
+         */
+        public ByteBuffer view(int offset, int length) {
+            reader.clear();
+            reader.position(offset);
+            reader.limit(offset + length);
+            return reader;
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.github.loki4j.client.batch;
 
 import java.util.Arrays;
+import java.util.function.Function;
 
 import com.github.loki4j.client.util.StringUtils;
 
@@ -12,21 +13,75 @@ public class LogRecordStream {
 
     public final int utf8SizeBytes;
 
+    /**
+     * Hash of the labels. Unlike id, it is the same for all the streams
+     * created for the same labels, e.g. if a stream was evicted from
+     * the registry and then registered again
+     */
+    public final int labelsHash;
+
+    /**
+     * Labels serialized by JsonWriter, computed on the first use.
+     * Streams are shared between all the records with the same labels,
+     * so labels are serialized only once per stream
+     */
+    private volatile byte[] jsonLabels;
+
+    /**
+     * Labels serialized by ProtobufWriter, computed on the first use
+     */
+    private volatile byte[] protobufLabels;
+
     private LogRecordStream(long id, String[] labels) {
         this.id = id;
         this.labels = labels;
 
         var sizeBytes = 0;
+        // 64-bit FNV-1a, folded to 32 bits as its lower bits are weak
+        var hash = 0xCBF29CE484222325L;
         for (int i = 0; i < labels.length; i++) {
             sizeBytes += StringUtils.utf8Length(labels[i]);
+            for (int j = 0; j < labels[i].length(); j++)
+                hash = (hash ^ labels[i].charAt(j)) * 0x100000001B3L;
+            // label separator, can not be confused with any char
+            hash = (hash ^ 0x10000) * 0x100000001B3L;
         }
         utf8SizeBytes = sizeBytes;
+        labelsHash = (int) (hash ^ (hash >>> 32));
     }
 
     public static LogRecordStream create(long id, String... labels) {
         return new LogRecordStream(id, labels);
     }
 
+    /**
+     * Returns labels of this stream serialized for JSON format.
+     *
+     * @param serializer A function to serialize labels if they are not cached yet
+     */
+    public byte[] jsonLabels(Function<String[], byte[]> serializer) {
+        var result = jsonLabels;
+        if (result == null) {
+            result = serializer.apply(labels);
+            jsonLabels = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns labels of this stream serialized for Protobuf format.
+     *
+     * @param serializer A function to serialize labels if they are not cached yet
+     */
+    public byte[] protobufLabels(Function<String[], byte[]> serializer) {
+        var result = protobufLabels;
+        if (result == null) {
+            result = serializer.apply(labels);
+            protobufLabels = result;
+        }
+        return result;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -0,0 +1,341 @@
+package com.github.loki4j.client.batch;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * A thread-safe registry of log record streams.
+ * Each unique key is mapped to a stream with a unique id.
+ * <p>
+ * Streams can be looked up either by a string key, or by a primitive hash
+ * and a matcher that compares the candidate stream with the caller's data.
+ * The latter allows to find a stream without building any key object.
+ * <p>
+ * Lookups never block and do not allocate. Registration of new streams
+ * is serialized, but it happens only once per unique key. Once the registry
+ * is full and refuses new streams, registration does not block either.
+ * <p>
+ * The number of streams can be limited. Once the limit is reached,
+ * the registry either evicts the least recently used stream (using the
+ * clock algorithm), or refuses to register new streams.
+ */
+public final class LogRecordStreamRegistry {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Max number of streams in the registry, 0 means unlimited
+     */
+    private final int maxStreams;
+
+    /**
+     * If true, the least recently used stream is evicted once the limit is reached.
+     * Otherwise, new streams are not registered
+     */
+    private final boolean evict;
+
+    private volatile AtomicReferenceArray<Node> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    private final Object writeLock = new Object();
+
+    /**
+     * All the nodes in the order the clock hand walks through them,
+     * used only if the number of streams is limited
+     */
+    private Node[] clock;
+    private int clockHand = 0;
+
+    private volatile int size = 0;
+
+    private volatile long createdCount = 0L;
+    private volatile long evictedCount = 0L;
+    private final AtomicLong overflowCount = new AtomicLong(0L);
+
+    public LogRecordStreamRegistry() {
+        this(0, false);
+    }
+
+    /**
+     * @param maxStreams Max number of streams in the registry, 0 means unlimited
+     * @param evict If true, the least recently used stream is evicted once the limit
+     * is reached. Otherwise, no new streams are registered after that
+     */
+    public LogRecordStreamRegistry(int maxStreams, boolean evict) {
+        if (maxStreams < 0)
+            throw new IllegalArgumentException("Max streams must not be negative: " + maxStreams);
+        this.maxStreams = maxStreams;
+        this.evict = evict;
+        this.clock = maxStreams > 0 ? new Node[Math.min(maxStreams, INITIAL_CAPACITY)] : null;
+    }
+
+    /**
+     * Returns a stream registered for the given key,
+     * or null if there is no such stream yet
+     */
+    public LogRecordStream get(String key) {
+        var t = table;
+        var hash = key.hashCode();
+        for (var n = t.get(index(hash, t.length())); n != null; n = n.next) {
+            if (n.hash == hash && key.equals(n.key))
+                return n.touch();
+        }
+        return null;
+    }
+
+    /**
+     * Returns a stream registered for the given key,
+     * or registers a new stream with the given labels if there is no such stream yet.
+     * If several threads register the same key concurrently, only one stream is created.
+     *
+     * @return A registered stream, or null if the limit of streams is reached
+     * and no stream can be evicted
+     */
+    public LogRecordStream register(String key, String[] labels) {
+        return register(key, labels, false);
+    }
+
+    /**
+     * Same as {@code register(key, labels)}, but if {@code force} is true
+     * the stream is registered even if the limit of streams is reached
+     */
+    public LogRecordStream register(String key, String[] labels, boolean force) {
+        if (!force && isFull())
+            return overflowIfNull(get(key));
+        synchronized (writeLock) {
+            var stream = get(key);
+            if (stream == null)
+                stream = insert(key.hashCode(), key, labels, force);
+            return stream;
+        }
+    }
+
+    /**
+     * Returns a stream registered for the given hash that is accepted by the matcher,
+     * or null if there is no such stream yet.
+     *
+     * @param hash Hash of the stream's labels computed by the caller
+     * @param arg An argument passed to the matcher along with a candidate stream
+     * @param matcher A function that checks if the candidate stream has labels the caller is looking for
+     */
+    public <A> LogRecordStream get(long hash, A arg, BiPredicate<LogRecordStream, A> matcher) {
+        var t = table;
+        for (var n = t.get(index(hash, t.length())); n != null; n = n.next) {
+            if (n.hash == hash && n.key == null && matcher.test(n.stream, arg))
+                return n.touch();
+        }
+        return null;
+    }
+
+    /**
+     * Returns a stream registered for the given hash and labels,
+     * or registers a new stream if there is no such stream yet.
+     *
+     * @return A registered stream, or null if the limit of streams is reached
+     * and no stream can be evicted
+     */
+    public LogRecordStream register(long hash, String[] labels) {
+        return register(hash, labels, false);
+    }
+
+    /**
+     * Same as {@code register(hash, labels)}, but if {@code force} is true
+     * the stream is registered even if the limit of streams is reached
+     */
+    public LogRecordStream register(long hash, String[] labels, boolean force) {
+        if (!force && isFull())
+            return overflowIfNull(get(hash, labels, (s, l) -> Arrays.equals(s.labels, l)));
+        synchronized (writeLock) {
+            var stream = get(hash, labels, (s, l) -> Arrays.equals(s.labels, l));
+            if (stream == null)
+                stream = insert(hash, null, labels, force);
+            return stream;
+        }
+    }
+
+    /**
+     * Performs an action for each registered stream
+     */
+    public void forEach(Consumer<LogRecordStream> action) {
+        var t = table;
+        for (int i = 0; i < t.length(); i++) {
+            for (var n = t.get(i); n != null; n = n.next)
+                action.accept(n.stream);
+        }
+    }
+
+    /**
+     * Number of streams currently registered
+     */
+    public int size() {
+        return size;
+    }
+
+    public int maxStreams() {
+        return maxStreams;
+    }
+
+    /**
+     * Total number of streams created since the registry was initialized
+     */
+    public long createdCount() {
+        return createdCount;
+    }
+
+    /**
+     * Total number of streams evicted to free space for new ones
+     */
+    public long evictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Total number of times a stream was not registered
+     * because the limit of streams was reached
+     */
+    public long overflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Checks if the limit of streams is reached and no stream can be evicted.
+     * Streams are never removed from such a registry, so once it is full
+     * it stays full and new streams can be rejected without taking the lock
+     */
+    private boolean isFull() {
+        return maxStreams > 0 && !evict && size >= maxStreams;
+    }
+
+    private LogRecordStream overflowIfNull(LogRecordStream stream) {
+        if (stream == null)
+            overflowCount.incrementAndGet();
+        return stream;
+    }
+
+    private LogRecordStream insert(long hash, String key, String[] labels, boolean force) {
+        if (maxStreams > 0 && size >= maxStreams) {
+            if (evict) {
+                evictOne();
+            } else if (!force) {
+                overflowCount.incrementAndGet();
+                return null;
+            }
+        }
+
+        var stream = LogRecordStream.create(createdCount, labels);
+        createdCount = createdCount + 1;
+        var t = table;
+        if (size + 1 > t.length() * 3 / 4)
+            t = resize(t);
+        var i = index(hash, t.length());
+        var node = new Node(hash, key, stream, t.get(i));
+        t.set(i, node);
+        if (clock != null) {
+            if (size == clock.length)
+                clock = Arrays.copyOf(clock, size * 2);
+            node.slot = size;
+            clock[size] = node;
+        }
+        size = size + 1;
+        return stream;
+    }
+
+    /**
+     * Walks the clock hand giving a second chance to recently used streams,
+     * and evicts the first stream that was not used since the hand passed it last time
+     */
+    private void evictOne() {
+        while (true) {
+            if (clockHand >= size)
+                clockHand = 0;
+            var node = clock[clockHand];
+            if (node.referenced) {
+                node.referenced = false;
+                clockHand++;
+            } else {
+                remove(node);
+                return;
+            }
+        }
+    }
+
+    private void remove(Node node) {
+        var t = table;
+        var i = index(node.hash, t.length());
+        var n = t.get(i);
+        if (n == node) {
+            t.set(i, node.next);
+        } else {
+            while (n.next != node)
+                n = n.next;
+            // readers that are at the removed node still can continue the chain
+            n.next = node.next;
+        }
+        var last = clock[size - 1];
+        clock[node.slot] = last;
+        last.slot = node.slot;
+        clock[size - 1] = null;
+        size = size - 1;
+        evictedCount = evictedCount + 1;
+    }
+
+    private AtomicReferenceArray<Node> resize(AtomicReferenceArray<Node> t) {
+        // nodes are re-linked in place, so a reader walking the old table
+        // might miss some stream and fall back to the register() that
+        // re-checks it under the lock
+        var nt = new AtomicReferenceArray<Node>(t.length() * 2);
+        for (int i = 0; i < t.length(); i++) {
+            var n = t.get(i);
+            while (n != null) {
+                var next = n.next;
+                var ni = index(n.hash, nt.length());
+                n.next = nt.get(ni);
+                nt.set(ni, n);
+                n = next;
+            }
+        }
+        table = nt;
+        return nt;
+    }
+
+    private static int index(long hash, int length) {
+        var h = (int)(hash ^ (hash >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (length - 1);
+    }
+
+    private static final class Node {
+        final long hash;
+        /**
+         * String key of the stream, null for streams registered by hash and labels
+         */
+        final String key;
+        final LogRecordStream stream;
+        volatile Node next;
+        /**
+         * Set on every lookup, cleared by the clock hand.
+         * Races are benign, so this field is not volatile
+         */
+        boolean referenced = true;
+        /**
+         * Position of this node in the clock, guarded by the write lock
+         */
+        int slot;
+
+        Node(long hash, String key, LogRecordStream stream, Node next) {
+            this.hash = hash;
+            this.key = key;
+            this.stream = stream;
+            this.next = next;
+        }
+
+        LogRecordStream touch() {
+            // avoid writing to the shared cache line if the flag is already set
+            if (!referenced)
+                referenced = true;
+            return stream;
+        }
+    }
+
+}
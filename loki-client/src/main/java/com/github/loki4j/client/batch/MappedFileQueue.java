@@ -0,0 +1,439 @@
+package com.github.loki4j.client.batch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A send queue that keeps batches in a memory-mapped circular file,
+ * so they survive restarts of the application.
+ * <p>
+ * Each batch is stored as a frame with a header containing its length,
+ * CRC32 checksum of the header and the content, logical position in the file, batch id,
+ * number of records, and partition. The file header keeps the position
+ * of the oldest frame that is not sent yet. Once a batch is returned,
+ * the head moves past all the returned frames that precede it.
+ * <p>
+ * On start, frames are scanned from the head until the first one that
+ * is incomplete, corrupted, or left from the previous lap over the file.
+ * All the valid frames are put back to the queue and will be sent again.
+ * Batches that were being sent during the crash are sent once again too.
+ * <p>
+ * The file is written through the OS page cache, so its content survives
+ * a crash of the JVM, but not a crash of the OS. The size of the file does
+ * not depend on the heap size. Only one queue can use the file at a time.
+ */
+public final class MappedFileQueue implements SendQueue {
+
+    private static final int MAGIC = 0x4C344A51;
+    private static final int VERSION = 1;
+
+    // file header layout
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_HEAD = 16;
+
+    // frame header layout
+    private static final int FRAME_HEADER_SIZE = 32;
+    private static final int FRAME_LENGTH = 0;
+    private static final int FRAME_CRC = 4;
+    private static final int FRAME_POSITION = 8;
+    private static final int FRAME_BATCH_ID = 16;
+    private static final int FRAME_ITEMS = 24;
+    private static final int FRAME_PARTITION = 28;
+
+    /**
+     * A length that marks the rest of the lap as unused,
+     * the next frame starts at the beginning of the data region
+     */
+    private static final int PADDING = -1;
+
+    /**
+     * Frames are aligned, so there is always space for a padding marker
+     */
+    private static final int ALIGNMENT = 8;
+
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private final MappedByteBuffer mapped;
+
+    /**
+     * Size of the data region of the file
+     */
+    private final long capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Logical position of the oldest frame not returned yet, guarded by the lock
+     */
+    private long head;
+
+    /**
+     * Logical position for the next frame, guarded by the lock
+     */
+    private long tail;
+
+    /**
+     * Frames written but not borrowed yet, guarded by the lock
+     */
+    private final ArrayDeque<Frame> ready = new ArrayDeque<>();
+
+    /**
+     * All the frames between the head and the tail, guarded by the lock
+     */
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+    private final CRC32 crc = new CRC32();
+
+    private final int recoveredItems;
+
+    private boolean closed = false;
+
+    /**
+     * Opens the queue file or creates a new one
+     *
+     * @param file Path to the queue file
+     * @param maxSizeBytes Max number of bytes for batches in the file,
+     * used only if a new file is created
+     * @param partitions Number of partitions batches are produced by.
+     * Recovered batches are re-distributed if this number has changed
+     */
+    public MappedFileQueue(Path file, long maxSizeBytes, int partitions) throws IOException {
+        channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            try {
+                fileLock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                throw new IOException("Send queue file is used by another queue: " + file, e);
+            }
+            if (fileLock == null)
+                throw new IOException("Send queue file is used by another process: " + file);
+
+            var existing = readHeader();
+            if (existing == null) {
+                // start from the clean file, so no stale frames are left
+                channel.truncate(0);
+                capacity = alignDown(Math.min(maxSizeBytes, Integer.MAX_VALUE - HEADER_SIZE));
+                if (capacity < ALIGNMENT + FRAME_HEADER_SIZE)
+                    throw new IllegalArgumentException("Send queue file size is too small: " + maxSizeBytes);
+            } else {
+                capacity = existing;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            if (existing == null) {
+                mapped.putInt(HEADER_MAGIC, MAGIC);
+                mapped.putInt(HEADER_VERSION, VERSION);
+                mapped.putLong(HEADER_CAPACITY, capacity);
+                mapped.putLong(HEADER_HEAD, 0L);
+            }
+            head = mapped.getLong(HEADER_HEAD);
+            recoveredItems = recover(partitions);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the capacity stored in the file header,
+     * or null if the file has no valid header
+     */
+    private Long readHeader() throws IOException {
+        if (channel.size() < HEADER_SIZE)
+            return null;
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        var cap = header.getLong(HEADER_CAPACITY);
+        if (header.getInt(HEADER_MAGIC) != MAGIC
+                || header.getInt(HEADER_VERSION) != VERSION
+                || cap <= 0
+                || cap % ALIGNMENT != 0
+                || channel.size() < HEADER_SIZE + cap)
+            return null;
+        return cap;
+    }
+
+    private int recover(int partitions) {
+        var items = 0;
+        var pos = head;
+        tail = head;
+        while (pos - head < capacity) {
+            var rest = capacity - (pos % capacity);
+            var offset = offset(pos);
+            var length = rest < FRAME_HEADER_SIZE ? PADDING : mapped.getInt(offset + FRAME_LENGTH);
+            if (length == PADDING) {
+                pos += rest;
+                continue;
+            }
+            // positions grow monotonically, so frames left from the previous laps never match
+            if (length < 0
+                    || length > rest - FRAME_HEADER_SIZE
+                    || mapped.getLong(offset + FRAME_POSITION) != pos
+                    || mapped.getInt(offset + FRAME_CRC) != checksum(offset, length))
+                break;
+            var frame = new Frame(pos, pos + frameSize(length));
+            frame.partition = Math.floorMod(mapped.getInt(offset + FRAME_PARTITION), partitions);
+            frame.batchId = mapped.getLong(offset + FRAME_BATCH_ID);
+            frame.sizeItems = mapped.getInt(offset + FRAME_ITEMS);
+            frame.sizeBytes = length;
+            frame.data = slice(offset + FRAME_HEADER_SIZE, length);
+            frames.offer(frame);
+            ready.offer(frame);
+            items += frame.sizeItems;
+            pos = frame.end;
+            tail = pos;
+        }
+        return items;
+    }
+
+    @Override
+    public boolean offer(int partition, long batchId, int itemsCount, int claimBytes, Consumer<ByteBuffer> write) {
+        var size = frameSize(claimBytes);
+        lock.lock();
+        try {
+            if (closed || !fits(size))
+                return false;
+            var padding = padding(size);
+            if (padding > 0) {
+                mapped.putInt(offset(tail) + FRAME_LENGTH, PADDING);
+                tail += padding;
+            }
+
+            var offset = offset(tail);
+            var frame = new Frame(tail, tail + size);
+            frame.partition = partition;
+            frame.batchId = batchId;
+            frame.sizeItems = itemsCount;
+            frame.sizeBytes = claimBytes;
+            frame.data = slice(offset + FRAME_HEADER_SIZE, claimBytes);
+            write.accept(frame.data);
+            frame.data.clear();
+            frame.data.limit(claimBytes);
+
+            mapped.putLong(offset + FRAME_POSITION, frame.position);
+            mapped.putLong(offset + FRAME_BATCH_ID, batchId);
+            mapped.putInt(offset + FRAME_ITEMS, itemsCount);
+            mapped.putInt(offset + FRAME_PARTITION, partition);
+            mapped.putInt(offset + FRAME_CRC, checksum(offset, claimBytes));
+            // length goes last, so an incomplete frame is never recovered
+            mapped.putInt(offset + FRAME_LENGTH, claimBytes);
+
+            tail = frame.end;
+            frames.offer(frame);
+            ready.offer(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frames do not wrap around, the rest of the lap is skipped if the frame does not fit
+     */
+    private long padding(long frameSize) {
+        var rest = capacity - (tail % capacity);
+        return rest < frameSize ? rest : 0L;
+    }
+
+    private boolean fits(long frameSize) {
+        return tail + padding(frameSize) + frameSize - head <= capacity;
+    }
+
+    @Override
+    public void awaitSpace(int claimBytes, long timeoutNs) throws InterruptedException {
+        lock.lock();
+        try {
+            if (closed || fits(frameSize(claimBytes)))
+                return;
+            if (timeoutNs == Long.MAX_VALUE)
+                notFull.await();
+            else
+                notFull.await(timeoutNs, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void wakeUpProducers() {
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BinaryBatch borrowBuffer() {
+        lock.lock();
+        try {
+            return ready.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void returnBuffer(BinaryBatch batch) {
+        lock.lock();
+        try {
+            // after close the batch is kept in the file and will be sent again after restart
+            if (closed)
+                return;
+            ((Frame) batch).returned = true;
+            var moved = false;
+            while (!frames.isEmpty() && frames.peek().returned) {
+                head = frames.poll().end;
+                moved = true;
+            }
+            if (moved) {
+                mapped.putLong(HEADER_HEAD, head);
+                notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void awaitNotEmpty(long timeoutNs) throws InterruptedException {
+        lock.lock();
+        try {
+            if (!ready.isEmpty() || closed)
+                return;
+            if (timeoutNs == Long.MAX_VALUE)
+                notEmpty.await();
+            else
+                notEmpty.await(timeoutNs, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void wakeUpConsumers() {
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getSizeBytes() {
+        lock.lock();
+        try {
+            return tail - head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getMaxSizeBytes() {
+        return capacity;
+    }
+
+    /**
+     * Number of log records in the batches recovered from the file on start
+     */
+    public int getRecoveredItems() {
+        return recoveredItems;
+    }
+
+    /**
+     * Flushes the file to the disk and closes it.
+     * Batches returned after this call are kept in the file
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            mapped.force();
+            fileLock.release();
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error while closing send queue file", e);
+        } finally {
+            notEmpty.signalAll();
+            notFull.signalAll();
+            lock.unlock();
+        }
+    }
+
+    private int offset(long position) {
+        return HEADER_SIZE + (int) (position % capacity);
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        var buffer = mapped.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+
+    /**
+     * Computes a checksum of the frame's header fields after the checksum itself
+     * and the frame's content, so a zero-filled region is never a valid frame
+     */
+    private int checksum(int frameOffset, int length) {
+        crc.reset();
+        crc.update(slice(frameOffset + FRAME_POSITION, FRAME_HEADER_SIZE - FRAME_POSITION + length));
+        return (int) crc.getValue();
+    }
+
+    private static long frameSize(int length) {
+        return alignUp(FRAME_HEADER_SIZE + (long) length);
+    }
+
+    private static long alignUp(long size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static long alignDown(long size) {
+        return size & -ALIGNMENT;
+    }
+
+    private static final class Frame extends BinaryBatch {
+        /**
+         * Logical position of the frame in the file
+         */
+        final long position;
+
+        /**
+         * Logical position right after the frame
+         */
+        final long end;
+
+        boolean returned = false;
+
+        Frame(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.github.loki4j.client.batch;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue of encoded batches waiting to be sent to Loki.
+ * <p>
+ * Producers add batches using {@code offer()}. Consumers take them using
+ * {@code borrowBuffer()} and give them back using {@code returnBuffer()}
+ * once the batch is sent. All the methods are thread-safe.
+ */
+public interface SendQueue {
+
+    /**
+     * Adds a new batch to the queue if there is enough free space for it.
+     *
+     * @param partition Index of the partition (i.e., encoder) this batch belongs to
+     * @param batchId Id of the batch
+     * @param itemsCount Number of log records in the batch
+     * @param claimBytes Size of the binary batch representation in bytes
+     * @param write A function that writes the binary batch representation to the given buffer
+     * @return false if the queue is full, true otherwise
+     */
+    boolean offer(int partition, long batchId, int itemsCount, int claimBytes, Consumer<ByteBuffer> write);
+
+    /**
+     * Blocks the calling producer thread until there is enough free space
+     * for a batch of the given size, the timeout expires,
+     * or {@code wakeUpProducers()} is called.
+     *
+     * @param claimBytes Size of the binary batch representation in bytes
+     * @param timeoutNs Max time to wait in nanoseconds,
+     * {@code Long.MAX_VALUE} means wait without timeout
+     */
+    void awaitSpace(int claimBytes, long timeoutNs) throws InterruptedException;
+
+    /**
+     * Wakes up all the producer threads waiting in {@code awaitSpace()}
+     */
+    void wakeUpProducers();
+
+    /**
+     * Takes the oldest batch from the queue,
+     * returns null if there are no batches to send
+     */
+    BinaryBatch borrowBuffer();
+
+    /**
+     * Returns the batch taken by {@code borrowBuffer()} back to the queue
+     * once it is not needed anymore
+     */
+    void returnBuffer(BinaryBatch batch);
+
+    /**
+     * Blocks the calling consumer thread until the queue is not empty,
+     * the timeout expires, or {@code wakeUpConsumers()} is called.
+     * Several consumer threads can wait at the same time.
+     *
+     * @param timeoutNs Max time to wait in nanoseconds,
+     * {@code Long.MAX_VALUE} means wait without timeout
+     */
+    void awaitNotEmpty(long timeoutNs) throws InterruptedException;
+
+    /**
+     * Wakes up all the consumer threads waiting in {@code awaitNotEmpty()}
+     */
+    void wakeUpConsumers();
+
+    /**
+     * Number of bytes taken by the batches in the queue
+     */
+    long getSizeBytes();
+
+    /**
+     * Max number of bytes the batches in the queue can take
+     */
+    long getMaxSizeBytes();
+
+    /**
+     * Releases the resources held by the queue.
+     * Batches returned after this call are not removed from the queue
+     */
+    default void close() { }
+
+}
@@ -23,12 +23,6 @@ public final class ApacheHttpClient implements Loki4jHttpClient {
     private final CloseableHttpClient client;
     private final Supplier<HttpPost> requestBuilder;
 
-    /**
-     * Buffer is needed for turning ByteBuffer into byte array
-     * only if direct ByteBuffer arrived.
-     */
-    private byte[] bodyBuffer = new byte[0];
-
     public ApacheHttpClient(HttpConfig conf) {
         this.conf = conf;
 
@@ -73,18 +67,20 @@ public final class ApacheHttpClient implements Loki4jHttpClient {
         if (batch.hasArray()) {
             request.setEntity(new ByteArrayEntity(batch.array(), batch.position(), batch.remaining()));
         } else {
-            var len = batch.remaining();
-            if (len > bodyBuffer.length)
-                bodyBuffer = new byte[len];
-            batch.get(bodyBuffer, 0, len);
-            request.setEntity(new ByteArrayEntity(bodyBuffer, 0, len));
+            // direct buffer is streamed to the connection as is,
+            // without copying it to the heap
+            request.setEntity(new ByteBufferEntity(batch));
         }
 
         var r = client.execute(request);
         var entity = r.getEntity();
+        var retryAfter = r.getFirstHeader(HttpHeaders.RETRY_AFTER);
         return new LokiResponse(
             r.getStatusLine().getStatusCode(),
-            entity != null ? EntityUtils.toString(entity) : "");
+            entity != null ? EntityUtils.toString(entity) : "",
+            LokiResponse.parseRetryAfterMs(
+                retryAfter != null ? retryAfter.getValue() : null,
+                System.currentTimeMillis()));
     }
 
     @Override
@@ -0,0 +1,21 @@
+package com.github.loki4j.client.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An interface for Loki4j HTTP senders that can send batches
+ * without blocking the calling thread.
+ */
+public interface AsyncLoki4jHttpClient extends Loki4jHttpClient {
+
+    /**
+     * Start sending a batch to Loki.
+     * The batch buffer must not be modified until the returned future is completed.
+     *
+     * @return A future that is completed with a response from Loki,
+     * or completed exceptionally if send was not successful
+     */
+    public CompletableFuture<LokiResponse> sendAsync(ByteBuffer batch);
+
+}
@@ -0,0 +1,86 @@
+package com.github.loki4j.client.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * An HTTP entity that streams its content directly from a {@link ByteBuffer}.
+ * Unlike {@link org.apache.http.entity.ByteArrayEntity ByteArrayEntity} it does
+ * not require the content to be copied to a heap byte array, so it can be used
+ * with direct buffers.
+ * <p>
+ * The position and limit of the original buffer are never changed,
+ * so the entity is repeatable.
+ */
+public final class ByteBufferEntity extends AbstractHttpEntity {
+
+    private final ByteBuffer content;
+
+    public ByteBufferEntity(ByteBuffer content) {
+        this.content = content;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return content.remaining();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new ByteBufferInputStream(content.duplicate());
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        var buf = content.duplicate();
+        var channel = Channels.newChannel(outStream);
+        while (buf.hasRemaining())
+            channel.write(buf);
+        outStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining())
+                return -1;
+            var n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+}
@@ -5,5 +5,6 @@ public class HttpHeaders {
     public static final String CONTENT_TYPE = "Content-Type";
     public static final String AUTHORIZATION = "Authorization";
     public static final String X_SCOPE_ORGID = "X-Scope-OrgID";
+    public static final String RETRY_AFTER = "Retry-After";
 
 }
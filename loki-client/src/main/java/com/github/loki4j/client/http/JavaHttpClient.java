@@ -6,8 +6,9 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Flow.Publisher;
@@ -19,7 +20,13 @@ import com.github.loki4j.client.util.Loki4jThreadFactory;
 /**
  * Loki client that is backed by Java standard {@link java.net.http.HttpClient HttpClient}
  */
-public final class JavaHttpClient implements Loki4jHttpClient {
+public final class JavaHttpClient implements AsyncLoki4jHttpClient {
+
+    /**
+     * Max number of inner HTTP threads. Requests are sent asynchronously,
+     * so these threads only process responses and completion callbacks
+     */
+    private static final int MAX_INNER_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
 
     private final HttpConfig conf;
     private final HttpClient client;
@@ -30,11 +37,13 @@ public final class JavaHttpClient implements Loki4jHttpClient {
     public JavaHttpClient(HttpConfig conf) {
         this.conf = conf;
 
-        internalHttpThreadPool = new ThreadPoolExecutor(
-            0, Integer.MAX_VALUE,
-            conf.java().innerThreadsExpirationMs, TimeUnit.MILLISECONDS, // expire unused threads after 5 batch intervals
-            new SynchronousQueue<Runnable>(),
+        var pool = new ThreadPoolExecutor(
+            MAX_INNER_THREADS, MAX_INNER_THREADS,
+            conf.java().innerThreadsExpirationMs, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
             new Loki4jThreadFactory("loki4j-java-http-internal"));
+        pool.allowCoreThreadTimeOut(true);
+        internalHttpThreadPool = pool;
 
         client = HttpClient
             .newBuilder()
@@ -59,12 +68,30 @@ public final class JavaHttpClient implements Loki4jHttpClient {
 
     @Override
     public LokiResponse send(ByteBuffer batch) throws Exception {
-        var request = requestBuilder
+        return toLokiResponse(client.send(buildRequest(batch), HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Override
+    public CompletableFuture<LokiResponse> sendAsync(ByteBuffer batch) {
+        return client
+            .sendAsync(buildRequest(batch), HttpResponse.BodyHandlers.ofString())
+            .thenApply(JavaHttpClient::toLokiResponse);
+    }
+
+    private static LokiResponse toLokiResponse(HttpResponse<String> response) {
+        return new LokiResponse(
+            response.statusCode(),
+            response.body(),
+            LokiResponse.parseRetryAfterMs(
+                response.headers().firstValue(HttpHeaders.RETRY_AFTER).orElse(null),
+                System.currentTimeMillis()));
+    }
+
+    private HttpRequest buildRequest(ByteBuffer batch) {
+        return requestBuilder
             .copy()
             .POST(HttpRequest.BodyPublishers.fromPublisher(new BatchPublisher(batch), batch.remaining()))
             .build();
-        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        return new LokiResponse(response.statusCode(), response.body());
     }
 
     @Override
@@ -1,11 +1,51 @@
 package com.github.loki4j.client.http;
 
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
 public final class LokiResponse {
     public final int status;
     public final String body;
-    
+
+    /**
+     * Delay in milliseconds requested by Loki in Retry-After header,
+     * -1 if the header is not set
+     */
+    public final long retryAfterMs;
+
     public LokiResponse(int status, String body) {
+        this(status, body, -1L);
+    }
+
+    public LokiResponse(int status, String body, long retryAfterMs) {
         this.status = status;
         this.body = body;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * Parses a value of Retry-After header, either a number of seconds or an HTTP date
+     *
+     * @param header A value of the header, can be null
+     * @param nowMs Current time in milliseconds
+     * @return A delay in milliseconds, or -1 if the value is missing or not valid
+     */
+    public static long parseRetryAfterMs(String header, long nowMs) {
+        if (header == null)
+            return -1L;
+        var value = header.trim();
+        try {
+            var seconds = Long.parseLong(value);
+            return seconds < 0 ? -1L : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // not a number, try a date
+        }
+        try {
+            var dateMs = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0L, dateMs - nowMs);
+        } catch (DateTimeParseException e) {
+            return -1L;
+        }
     }
 }
@@ -1,52 +1,91 @@
 package com.github.loki4j.client.pipeline;
 
-import java.util.Comparator;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 import java.util.function.Supplier;
 
 import com.github.loki4j.client.batch.Batcher;
 import com.github.loki4j.client.batch.BinaryBatch;
 import com.github.loki4j.client.batch.ByteBufferQueue;
 import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.batch.LogRecordArena;
 import com.github.loki4j.client.batch.LogRecordBatch;
 import com.github.loki4j.client.batch.LogRecordStream;
+import com.github.loki4j.client.batch.MappedFileQueue;
+import com.github.loki4j.client.batch.SendQueue;
+import com.github.loki4j.client.http.AsyncLoki4jHttpClient;
 import com.github.loki4j.client.http.Loki4jHttpClient;
 import com.github.loki4j.client.http.LokiResponse;
+import com.github.loki4j.client.pipeline.PipelineConfig.BackpressureMode;
 import com.github.loki4j.client.util.ByteBufferFactory;
 import com.github.loki4j.client.util.Loki4jLogger;
 import com.github.loki4j.client.util.Loki4jThreadFactory;
+import com.github.loki4j.client.util.MpscRingBuffer;
 import com.github.loki4j.client.writer.Writer;
 
 public final class DefaultPipeline {
 
-    private static final Comparator<LogRecord> compareByTime = (e1, e2) -> {
-        var tsCmp = Long.compare(e1.timestampMs, e2.timestampMs);
-        return tsCmp == 0 ? Integer.compare(e1.nanos, e2.nanos) : tsCmp;
-    };
+    private final long PARK_NS = TimeUnit.MILLISECONDS.toNanos(25);
 
-    private static final Comparator<LogRecord> compareByStream = (e1, e2) ->
-        Long.compare(e1.stream.id, e2.stream.id);
+    /**
+     * Encoders working in parallel, each one processes its own subset of streams
+     */
+    private final Encoder[] encoders;
 
-    private final long PARK_NS = TimeUnit.MILLISECONDS.toNanos(25);
+    private final SendQueue sendQueue;
 
-    private final ConcurrentLinkedQueue<LogRecord> buffer = new ConcurrentLinkedQueue<>();
+    /**
+     * Max number of batches taken from the send queue at once.
+     * Batches of the same encoder are sent one after another,
+     * so there is at most one batch per encoder being sent
+     */
+    private final int maxBorrowed;
 
-    private final ByteBufferQueue sendQueue;
+    private final Semaphore borrowPermits;
 
-    private final Batcher batcher;
+    /**
+     * Max number of times to retry sending a failed batch
+     */
+    private final int maxRetries;
+
+    private final long minRetryBackoffMs;
 
-    private final Optional<Comparator<LogRecord>> recordComparator;
+    private final long maxRetryBackoffMs;
 
-    private final Writer writer;
+    /**
+     * Limits the share of retries, so they do not starve new batches
+     */
+    private final RetryBudget retryBudget;
+
+    /**
+     * Limits the number of bytes sent to Loki per second, null if disabled
+     */
+    private final SendRateLimiter rateLimiter;
+
+    /**
+     * A lock that guards the send state of all the encoders
+     */
+    private final Object sendLock = new Object();
 
     /**
      * A HTTP client to use for pushing logs to Loki
@@ -66,37 +105,115 @@ public final class DefaultPipeline {
 
     private AtomicBoolean acceptNewEvents = new AtomicBoolean(true);
 
-    private AtomicBoolean drainRequested = new AtomicBoolean(false);
+    /**
+     * If true, sends are delayed by the rate limiter and the send queue
+     * is filled up, so new events would only grow the backlog
+     */
+    private volatile boolean sendThrottled = false;
+
+    private final BackpressureMode backpressureMode;
+
+    private final long backpressureTimeoutNs;
+
+    /**
+     * A lock for producers blocked until there is free space in the pipeline
+     */
+    private final ReentrantLock spaceLock = new ReentrantLock();
+    private final Condition spaceAvailable = spaceLock.newCondition();
+
+    /**
+     * Number of producers blocked in {@code awaitSpace()},
+     * the lock is taken to wake them up only if there are any
+     */
+    private final AtomicInteger blockedProducers = new AtomicInteger(0);
 
     private AtomicLong lastSendTimeMs = new AtomicLong(System.currentTimeMillis());
 
     private AtomicLong unsentEvents = new AtomicLong(0L);
 
-    private ScheduledExecutorService scheduler;
+    /**
+     * Max number of bytes of messages accepted but not encoded yet
+     */
+    private final long bufferMaxBytes;
+
+    /**
+     * Number of bytes of messages accepted but not encoded yet
+     */
+    private final AtomicLong intakeSizeBytes = new AtomicLong(0L);
+
     private ExecutorService encoderThreadPool;
     private ExecutorService senderThreadPool;
 
-    private ScheduledFuture<?> drainScheduledFuture;
+    /**
+     * A thread running the send loop, woken up on stop if it waits for the send rate
+     */
+    private volatile Thread senderThread;
+
+    /**
+     * Threads for sending batches using the blocking HTTP client,
+     * not used if the client is asynchronous
+     */
+    private ExecutorService blockingSendThreadPool;
+
+    /**
+     * A timer for sending failed batches once again after a backoff delay
+     */
+    private ScheduledExecutorService retryThreadPool;
 
     public DefaultPipeline(PipelineConfig conf) {
-        Optional<Comparator<LogRecord>> logRecordComparator = Optional.empty();
-        if (conf.staticLabels) {
-            if (conf.sortByTime)
-                logRecordComparator = Optional.of(compareByTime);
-        } else {
-            logRecordComparator = Optional.of(
-                conf.sortByTime ? compareByStream.thenComparing(compareByTime) : compareByStream);
-        }
         ByteBufferFactory bufferFactory = new ByteBufferFactory(conf.useDirectBuffers);
 
-        batcher = new Batcher(conf.batchMaxItems, conf.batchMaxBytes, conf.batchTimeoutMs);
-        recordComparator = logRecordComparator;
-        writer = conf.writerFactory.factory.apply(conf.batchMaxBytes, bufferFactory);
-        sendQueue = new ByteBufferQueue(conf.sendQueueMaxBytes, bufferFactory);
+        encoders = new Encoder[conf.encoderThreads];
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i] = new Encoder(
+                i,
+                // total capacity of the intake buffers is split between the encoders
+                new MpscRingBuffer<>((conf.bufferMaxItems + encoders.length - 1) / encoders.length),
+                new Batcher(
+                    conf.batchMaxItems,
+                    conf.batchMaxBytes,
+                    conf.batchTimeoutMs,
+                    conf.sortByTime,
+                    conf.batchTargetLatencyMs,
+                    conf.batchTargetSendRate),
+                conf.writerFactory.factory.apply(conf.batchMaxBytes, bufferFactory),
+                conf.offHeapMessages
+                    ? new LogRecordArena(conf.sendQueueMaxBytes / encoders.length, LogRecordArena.DEFAULT_SEGMENT_SIZE_BYTES)
+                    : null);
+        }
+        if (conf.sendQueueFile != null) {
+            try {
+                sendQueue = new MappedFileQueue(Paths.get(conf.sendQueueFile), conf.sendQueueFileMaxBytes, encoders.length);
+            } catch (IOException e) {
+                throw new RuntimeException("Error while opening send queue file " + conf.sendQueueFile, e);
+            }
+        } else {
+            sendQueue = new ByteBufferQueue(conf.sendQueueMaxBytes, bufferFactory);
+        }
+        bufferMaxBytes = conf.bufferMaxBytes;
+        backpressureMode = conf.backpressureMode;
+        backpressureTimeoutNs = TimeUnit.MILLISECONDS.toNanos(conf.backpressureTimeoutMs);
+        maxBorrowed = conf.encoderThreads;
+        borrowPermits = new Semaphore(maxBorrowed);
+        maxRetries = conf.maxRetries;
+        minRetryBackoffMs = conf.minRetryBackoffMs;
+        maxRetryBackoffMs = conf.maxRetryBackoffMs;
+        // enough to retry all the batches in flight during a short outage
+        retryBudget = new RetryBudget(
+            conf.retryBudgetRatio, Math.max(10.0, conf.encoderThreads * maxRetries), System.currentTimeMillis());
+        rateLimiter = conf.sendRateLimitBytesPerSec > 0
+            ? new SendRateLimiter(conf.sendRateLimitBytesPerSec, System.nanoTime())
+            : null;
         httpClient = conf.httpClientFactory.apply(conf.httpConfig);
         drainOnStop = conf.drainOnStop;
         this.log = conf.internalLoggingFactory.apply(this);
         this.metrics = conf.metricsEnabled ? new Loki4jMetrics(conf.name) : null;
+        if (conf.metricsEnabled && sendQueue instanceof ByteBufferQueue)
+            Loki4jMetrics.registerSendQueueMetrics(conf.name, (ByteBufferQueue) sendQueue);
+        if (conf.metricsEnabled)
+            Loki4jMetrics.registerIntakeMetrics(conf.name, this);
+        if (conf.metricsEnabled && rateLimiter != null)
+            Loki4jMetrics.registerSendRateMetrics(conf.name, rateLimiter);
     }
 
     public void start() {
@@ -104,26 +221,31 @@ public final class DefaultPipeline {
 
         started = true;
 
+        if (sendQueue instanceof MappedFileQueue) {
+            // batches recovered from the file are sent once again
+            var recovered = ((MappedFileQueue) sendQueue).getRecoveredItems();
+            unsentEvents.addAndGet(recovered);
+            if (recovered > 0)
+                log.info("Recovered %s events from the send queue file", recovered);
+        }
+
+        if (!(httpClient instanceof AsyncLoki4jHttpClient))
+            blockingSendThreadPool = Executors.newFixedThreadPool(encoders.length, new Loki4jThreadFactory("loki4j-http-sender"));
+
+        retryThreadPool = Executors.newSingleThreadScheduledExecutor(new Loki4jThreadFactory("loki4j-retry"));
+
         senderThreadPool = Executors.newFixedThreadPool(1, new Loki4jThreadFactory("loki4j-sender"));
         senderThreadPool.execute(() -> runSendLoop());
 
-        encoderThreadPool = Executors.newFixedThreadPool(1, new Loki4jThreadFactory("loki4j-encoder"));
-        encoderThreadPool.execute(() -> runEncodeLoop());
-
-        scheduler = Executors.newScheduledThreadPool(1, new Loki4jThreadFactory("loki4j-scheduler"));
-        drainScheduledFuture = scheduler.scheduleAtFixedRate(
-            () -> drain(),
-            100,
-            100,
-            TimeUnit.MILLISECONDS);
+        encoderThreadPool = Executors.newFixedThreadPool(encoders.length, new Loki4jThreadFactory("loki4j-encoder"));
+        for (var encoder : encoders)
+            encoderThreadPool.execute(() -> runEncodeLoop(encoder));
     }
 
     public void stop() {
-        drainScheduledFuture.cancel(false);
-
         if (drainOnStop) {
             log.info("Pipeline is draining...");
-            waitSendQueueLessThan(batcher.getCapacity(), Long.MAX_VALUE);
+            waitSendQueueLessThan(encoders[0].batcher.getCapacity() * encoders.length, Long.MAX_VALUE);
             lastSendTimeMs.set(0);
             drain();
             waitSendQueueIsEmpty(Long.MAX_VALUE);
@@ -131,10 +253,24 @@ public final class DefaultPipeline {
         }
 
         started = false;
+        signalSpace();
+        for (var encoder : encoders)
+            encoder.buffer.wakeUpConsumer();
+        sendQueue.wakeUpConsumers();
+        sendQueue.wakeUpProducers();
+        var sender = senderThread;
+        if (sender != null)
+            LockSupport.unpark(sender);
+        borrowPermits.release(maxBorrowed);
+        // batches still being sent are kept in the file queue
+        sendQueue.close();
 
-        scheduler.shutdown();
         encoderThreadPool.shutdown();
         senderThreadPool.shutdown();
+        // batches waiting for a retry are dropped, or kept in the file queue
+        retryThreadPool.shutdownNow();
+        if (blockingSendThreadPool != null)
+            blockingSendThreadPool.shutdown();
 
         try {
             httpClient.close();
@@ -145,15 +281,36 @@ public final class DefaultPipeline {
 
     public boolean append(long timestamp, int nanos, Supplier<LogRecordStream> stream, Supplier<String> message) {
         var startedNs = System.nanoTime();
-        boolean accepted = false;
-        if (acceptNewEvents.get()) {
-            var record = LogRecord.create(timestamp, nanos, stream.get(), message.get());
-            if (batcher.validateLogRecordSize(record)) {
-                buffer.offer(record);
-                unsentEvents.incrementAndGet();
-                accepted = true;
-            } else {
-                log.warn("Dropping the record that exceeds max batch size: %s", record);
+        var accepted = false;
+        if (acceptsNewEvents() || awaitSpace(this::acceptsNewEvents, startedNs)) {
+            // null stream means the encoder rejected the record
+            var recordStream = stream.get();
+            accepted = recordStream != null
+                && enqueue(encoderOf(recordStream), LogRecord.create(timestamp, nanos, recordStream, message.get()), startedNs);
+        }
+        if (metrics != null)
+            metrics.eventAppended(startedNs, !accepted);
+        return accepted;
+    }
+
+    /**
+     * Same as {@code append()}, but the message is already encoded in UTF-8
+     */
+    public boolean appendUtf8(long timestamp, int nanos, Supplier<LogRecordStream> stream, Supplier<byte[]> messageUtf8) {
+        var startedNs = System.nanoTime();
+        var accepted = false;
+        if (acceptsNewEvents() || awaitSpace(this::acceptsNewEvents, startedNs)) {
+            var recordStream = stream.get();
+            if (recordStream != null) {
+                var encoder = encoderOf(recordStream);
+                var bytes = messageUtf8.get();
+                // fall back to heap if there is no space left in the arena
+                LogRecord record = encoder.arena != null
+                    ? encoder.arena.create(timestamp, nanos, recordStream, bytes)
+                    : null;
+                if (record == null)
+                    record = LogRecord.createUtf8(timestamp, nanos, recordStream, bytes);
+                accepted = enqueue(encoder, record, startedNs);
             }
         }
         if (metrics != null)
@@ -161,16 +318,177 @@ public final class DefaultPipeline {
         return accepted;
     }
 
+    /**
+     * Reports an event dropped by a load shedding policy before it is appended
+     */
+    public void eventShed() {
+        if (metrics != null)
+            metrics.eventShed();
+    }
+
+    /**
+     * Share of the pipeline capacity taken by the events not sent yet, from 0 to 1.
+     * The largest of the fill ratios of the intake buffers and the send queue
+     */
+    public double getFillRatio() {
+        if (!acceptsNewEvents())
+            return 1.0;
+        var ratio = Math.max(
+            (double) sendQueue.getSizeBytes() / sendQueue.getMaxSizeBytes(),
+            (double) intakeSizeBytes.get() / bufferMaxBytes);
+        for (var encoder : encoders)
+            ratio = Math.max(ratio, (double) encoder.buffer.size() / encoder.buffer.capacity());
+        return Math.min(ratio, 1.0);
+    }
+
+    /**
+     * Number of events waiting in the intake buffers to be batched
+     */
+    public int getIntakeSizeItems() {
+        var size = 0;
+        for (var encoder : encoders)
+            size += encoder.buffer.size();
+        return size;
+    }
+
+    /**
+     * Number of bytes of messages accepted but not encoded yet
+     */
+    public long getIntakeSizeBytes() {
+        return intakeSizeBytes.get();
+    }
+
+    private boolean acceptsNewEvents() {
+        // rejects events before their messages are rendered,
+        // the exact size is checked once the message is known
+        return acceptNewEvents.get() && !sendThrottled && intakeSizeBytes.get() < bufferMaxBytes;
+    }
+
+    private Encoder encoderOf(LogRecordStream stream) {
+        // all the records of the same stream go to the same encoder,
+        // so their order is preserved. Stream ids can not be used here,
+        // as a stream re-registered after eviction gets a new id
+        return encoders[encoderIndex(stream, encoders.length)];
+    }
+
+    static int encoderIndex(LogRecordStream stream, int encoderCount) {
+        return Math.floorMod(stream.labelsHash, encoderCount);
+    }
+
+    private boolean enqueue(Encoder encoder, LogRecord record, long startedNs) {
+        var accepted = false;
+        if (!encoder.batcher.validateLogRecordSize(record)) {
+            log.warn("Dropping the record that exceeds max batch size: %s", record);
+        } else {
+            unsentEvents.incrementAndGet();
+            accepted = tryOffer(encoder, record)
+                || awaitSpace(() -> tryOffer(encoder, record), startedNs);
+            if (!accepted)
+                unsentEvents.decrementAndGet();
+        }
+        if (!accepted && encoder.arena != null)
+            encoder.arena.release(record);
+        return accepted;
+    }
+
+    /**
+     * Adds the record to the intake buffer if there is space for it,
+     * both in terms of items and bytes
+     */
+    private boolean tryOffer(Encoder encoder, LogRecord record) {
+        var size = record.messageUtf8SizeBytes;
+        while (true) {
+            var current = intakeSizeBytes.get();
+            // a record is always accepted to the empty intake, so large records do not starve
+            if (current > 0 && current + size > bufferMaxBytes)
+                return false;
+            if (intakeSizeBytes.compareAndSet(current, current + size))
+                break;
+        }
+        if (encoder.buffer.offer(record))
+            return true;
+        intakeSizeBytes.addAndGet(-size);
+        return false;
+    }
+
+    /**
+     * Releases the intake space taken by the messages of the encoded batch
+     */
+    private void releaseIntake(LogRecordBatch batch) {
+        var size = 0L;
+        for (int i = 0; i < batch.size(); i++)
+            size += batch.get(i).messageUtf8SizeBytes;
+        intakeSizeBytes.addAndGet(-size);
+        signalSpace();
+    }
+
+    /**
+     * Blocks the producer until {@code tryAcquire} succeeds, if allowed by backpressure settings.
+     * Should be called only after {@code tryAcquire} has failed
+     *
+     * @param startedNs Time the append operation started at, the timeout is counted from it
+     * @return true if {@code tryAcquire} succeeded
+     */
+    private boolean awaitSpace(BooleanSupplier tryAcquire, long startedNs) {
+        // pipeline's own threads must never wait for themselves
+        if (backpressureMode == BackpressureMode.DROP || Loki4jThreadFactory.isLoki4jThread(Thread.currentThread()))
+            return false;
+        var waitStartedNs = System.nanoTime();
+        var deadlineNs = startedNs + backpressureTimeoutNs;
+        var acquired = false;
+        // the counter is updated before the check, so either the check sees
+        // the free space, or the pipeline sees this producer and wakes it up
+        blockedProducers.incrementAndGet();
+        spaceLock.lock();
+        try {
+            while (started && !(acquired = tryAcquire.getAsBoolean())) {
+                if (backpressureMode == BackpressureMode.BLOCK_FOREVER) {
+                    spaceAvailable.await();
+                } else {
+                    var remainingNs = deadlineNs - System.nanoTime();
+                    if (remainingNs <= 0)
+                        break;
+                    spaceAvailable.awaitNanos(remainingNs);
+                }
+            }
+        } catch (InterruptedException e) {
+            // the event is dropped, the interrupt is kept for the caller
+            Thread.currentThread().interrupt();
+        } finally {
+            spaceLock.unlock();
+            blockedProducers.decrementAndGet();
+        }
+        if (metrics != null)
+            metrics.appendBlocked(waitStartedNs);
+        return acquired;
+    }
+
+    /**
+     * Wakes up the producers blocked until there is free space in the pipeline
+     */
+    private void signalSpace() {
+        if (blockedProducers.get() == 0)
+            return;
+        spaceLock.lock();
+        try {
+            spaceAvailable.signalAll();
+        } finally {
+            spaceLock.unlock();
+        }
+    }
+
     private void drain() {
-        drainRequested.set(true);
+        for (var encoder : encoders) {
+            encoder.drainRequested.set(true);
+            encoder.buffer.wakeUpConsumer();
+        }
         log.trace("drain planned");
     }
 
-    private void runEncodeLoop() {
-        var batch = new LogRecordBatch(batcher.getCapacity());
+    private void runEncodeLoop(Encoder encoder) {
         while (started) {
             try {
-                encodeStep(batch);
+                encodeStep(encoder);
             } catch (InterruptedException e) {
                 stop();
             }
@@ -178,6 +496,7 @@ public final class DefaultPipeline {
     }
 
     private void runSendLoop() {
+        senderThread = Thread.currentThread();
         while (started) {
             try {
                 sendStep();
@@ -187,9 +506,21 @@ public final class DefaultPipeline {
         }
     }
 
-    private void encodeStep(LogRecordBatch batch) throws InterruptedException {
-        while (started && buffer.isEmpty() && !drainRequested.get()) {
-            LockSupport.parkNanos(this, PARK_NS);
+    private void encodeStep(Encoder encoder) throws InterruptedException {
+        var buffer = encoder.buffer;
+        var batcher = encoder.batcher;
+        var batch = encoder.batch;
+        var writer = encoder.writer;
+        var partition = encoder.partition;
+        while (started && buffer.isEmpty() && !encoder.drainRequested.get()) {
+            // park until new records arrive, wake up by timer
+            // only if there is a pending batch to drain
+            var drainDelayMs = batcher.drainDelayMs(lastSendTimeMs.get());
+            if (drainDelayMs == 0L)
+                break;
+            buffer.awaitNotEmpty(drainDelayMs == Long.MAX_VALUE
+                ? Long.MAX_VALUE
+                : TimeUnit.MILLISECONDS.toNanos(drainDelayMs));
         }
         if (!started) return;
         log.trace("check encode actions");
@@ -199,30 +530,43 @@ public final class DefaultPipeline {
             if (batch.isEmpty()) batcher.add(buffer.remove(), batch);
             if (batch.isEmpty()) record = buffer.peek();
         }
+        signalSpace();
 
-        if (batch.isEmpty() && drainRequested.get())
+        if (batch.isEmpty())
             batcher.drain(lastSendTimeMs.get(), batch);
-        drainRequested.set(false);
+        encoder.drainRequested.set(false);
         if (batch.isEmpty()) return;
 
         writeBatch(batch, writer);
-        if (writer.isEmpty()) return;
+        // messages are copied to the writer (or dropped if serialization failed),
+        // so the arena space can be reused
+        if (encoder.arena != null)
+            encoder.arena.release(batch);
+        releaseIntake(batch);
+        if (writer.isEmpty()) {
+            // records of the batch are lost, nothing to wait for
+            unsentEvents.addAndGet(-batch.size());
+            batch.clear();
+            return;
+        }
         while(started && 
                 !sendQueue.offer(
+                    partition,
                     batch.batchId(),
                     batch.size(),
                     writer.size(),
                     b -> writer.toByteBuffer(b))) {
             acceptNewEvents.set(false);
-            LockSupport.parkNanos(this, PARK_NS);
+            // woken up once a batch is taken from the queue
+            sendQueue.awaitSpace(writer.size(), Long.MAX_VALUE);
         }
         batch.clear();
         acceptNewEvents.set(true);
+        signalSpace();
     }
 
     private void writeBatch(LogRecordBatch batch, Writer writer) {
         var startedNs = System.nanoTime();
-        recordComparator.ifPresent(cmp -> batch.sort(cmp));
         try {
             writer.serializeBatch(batch);
             log.info(
@@ -239,52 +583,208 @@ public final class DefaultPipeline {
     }
 
     private void sendStep() throws InterruptedException {
+        // each batch taken from the send queue holds a permit until it is returned back,
+        // so there are never more than maxBorrowed batches out of the queue
+        borrowPermits.acquire();
         BinaryBatch batch = sendQueue.borrowBuffer();
         while(started && batch == null) {
-            LockSupport.parkNanos(this, PARK_NS);
+            sendQueue.awaitNotEmpty(Long.MAX_VALUE);
             batch = sendQueue.borrowBuffer();
         }
         if (!started) return;
-        try {
-            sendBatch(batch);
-            lastSendTimeMs.set(System.currentTimeMillis());
-            log.trace("sent items: %s", batch.sizeItems);
-        } finally {
-            unsentEvents.addAndGet(-batch.sizeItems);
-            sendQueue.returnBuffer(batch);
+        if (rateLimiter != null)
+            awaitSendRate(batch);
+        var encoder = encoders[batch.partition];
+        synchronized (sendLock) {
+            // batches of the same encoder are sent one after another,
+            // the next one is sent once the previous one is completed
+            if (encoder.sending) {
+                encoder.pendingSends.offer(batch);
+                return;
+            }
+            encoder.sending = true;
         }
+        sendBatch(batch, 0);
     }
 
-    private LokiResponse sendBatch(BinaryBatch batch) {
+    /**
+     * Blocks the sender thread until the batch can be sent without exceeding the rate limit
+     */
+    private void awaitSendRate(BinaryBatch batch) {
         var startedNs = System.nanoTime();
-        LokiResponse r = null;
-        Exception e = null;
+        var waitNs = rateLimiter.acquire(batch.sizeBytes, startedNs);
+        if (waitNs == 0L)
+            return;
+        log.trace("batch %s waits %s ns for send rate limit", batch, waitNs);
+        // if the backlog grows while Loki is throttling us, new events are
+        // rejected on append, before any work is spent on encoding them
+        sendThrottled = sendQueue.getSizeBytes() * 2 > sendQueue.getMaxSizeBytes();
+        var remainingNs = waitNs;
+        // stop() wakes the sender up, so it does not wait until the end of the delay
+        while (started && remainingNs > 0) {
+            LockSupport.parkNanos(this, remainingNs);
+            remainingNs = startedNs + waitNs - System.nanoTime();
+        }
+        sendThrottled = false;
+        signalSpace();
+    }
+
+    /**
+     * Sends the batch to Loki
+     *
+     * @param attempt Number of previous attempts to send this batch
+     */
+    private void sendBatch(BinaryBatch batch, int attempt) {
+        if (attempt == 0)
+            retryBudget.deposit();
+        else if (rateLimiter != null)
+            // retries are already delayed, but they still count towards the rate
+            rateLimiter.acquire(batch.sizeBytes, System.nanoTime());
+        var startedNs = System.nanoTime();
+        // the same buffer is sent once again on retry, so the client gets its own view of it
+        var data = batch.data.duplicate();
+        CompletableFuture<LokiResponse> response;
         try {
-            r = httpClient.send(batch.data);
-        } catch (Exception re) {
-            e = re;
+            if (httpClient instanceof AsyncLoki4jHttpClient) {
+                response = ((AsyncLoki4jHttpClient) httpClient).sendAsync(data);
+            } else {
+                response = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return httpClient.send(data);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, blockingSendThreadPool);
+            }
+        } catch (Exception e) {
+            batchSent(batch, attempt, startedNs, null, e);
+            return;
         }
+        response.whenComplete((r, e) -> batchSent(batch, attempt, startedNs, r, e));
+    }
 
-        if (e != null) {
-            log.error(e,
-                "Error while sending Batch %s to Loki (%s)",
-                    batch, httpClient.getConfig().pushUrl);
+    private void batchSent(BinaryBatch batch, int attempt, long startedNs, LokiResponse r, Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        BinaryBatch next = null;
+        var retrying = false;
+        try {
+            if (e != null) {
+                log.error(e,
+                    "Error while sending Batch %s to Loki (%s)",
+                        batch, httpClient.getConfig().pushUrl);
+            }
+            else {
+                if (r.status < 200 || r.status > 299)
+                    log.error(
+                        "Loki responded with non-success status %s on batch %s. Error: %s",
+                        r.status, batch, r.body);
+                else
+                    log.info(
+                        "<<< Batch %s: Loki responded with status %s",
+                        batch, r.status);
+            }
+
+            if (metrics != null)
+                metrics.batchSent(startedNs, batch.sizeBytes, e != null || r.status > 299);
+            if (e == null)
+                encoders[batch.partition].batcher.reportRoundTrip(
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNs));
+
+            lastSendTimeMs.set(System.currentTimeMillis());
+            if (rateLimiter != null && r != null) {
+                if (r.status == 429)
+                    rateLimiter.throttled(r.retryAfterMs, System.nanoTime());
+                else if (r.status >= 200 && r.status <= 299)
+                    rateLimiter.accepted();
+            }
+            if (isRetryable(r, e))
+                retrying = scheduleRetry(batch, attempt, r != null ? r.retryAfterMs : -1L);
+            if (!retrying)
+                log.trace("sent items: %s", batch.sizeItems);
+        } finally {
+            // a batch waiting for a retry keeps its buffer, its permit,
+            // and blocks the next batches of its encoder
+            if (!retrying) {
+                var encoder = encoders[batch.partition];
+                unsentEvents.addAndGet(-batch.sizeItems);
+                sendQueue.returnBuffer(batch);
+                borrowPermits.release();
+                synchronized (sendLock) {
+                    next = started ? encoder.pendingSends.poll() : null;
+                    if (next == null)
+                        encoder.sending = false;
+                }
+            }
         }
-        else {
-            if (r.status < 200 || r.status > 299)
-                log.error(
-                    "Loki responded with non-success status %s on batch %s. Error: %s",
-                    r.status, batch, r.body);
-            else
-                log.info(
-                    "<<< Batch %s: Loki responded with status %s",
-                    batch, r.status);
+        if (next != null)
+            sendBatch(next, 0);
+    }
+
+    /**
+     * Checks if Loki might accept the batch if it is sent once again
+     */
+    static boolean isRetryable(LokiResponse r, Throwable e) {
+        if (e == null)
+            return r.status == 429 || r.status >= 500;
+        // other errors might happen after the batch is delivered,
+        // or mean that the batch is not valid
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException
+                    // connect timeouts of both Apache and Java HTTP clients
+                    || cause.getClass().getSimpleName().endsWith("ConnectTimeoutException"))
+                return true;
         }
+        return false;
+    }
 
-        if (metrics != null)
-            metrics.batchSent(startedNs, batch.sizeBytes, e != null || r.status > 299);
+    /**
+     * Computes a delay before the given retry. The delay grows exponentially
+     * and is randomized within its upper half, so retries of different batches
+     * do not hit Loki at the same moment
+     *
+     * @param attempt Number of previous attempts to send the batch
+     * @param random A random value between 0 and 1
+     */
+    static long retryBackoffMs(int attempt, long minBackoffMs, long maxBackoffMs, double random) {
+        var delayMs = minBackoffMs;
+        for (int i = 0; i < attempt && delayMs < maxBackoffMs; i++)
+            delayMs *= 2;
+        delayMs = Math.min(delayMs, maxBackoffMs);
+        return delayMs - (long) (random * (delayMs / 2));
+    }
 
-        return r;
+    /**
+     * Plans sending the batch once again, if allowed by retry settings
+     *
+     * @param retryAfterMs Delay requested by Loki, or -1 if not set
+     * @return true if a retry is scheduled, false if the batch should be dropped
+     */
+    private boolean scheduleRetry(BinaryBatch batch, int attempt, long retryAfterMs) {
+        if (!started)
+            return false;
+        if (attempt >= maxRetries || !retryBudget.tryWithdraw(System.currentTimeMillis())) {
+            if (maxRetries > 0)
+                log.warn("Giving up on batch %s after %s attempts", batch, attempt + 1);
+            if (metrics != null)
+                metrics.batchGivenUp();
+            return false;
+        }
+        // Loki might ask to wait longer than the backoff
+        var delayMs = Math.max(retryAfterMs, retryBackoffMs(attempt, minRetryBackoffMs, maxRetryBackoffMs,
+            ThreadLocalRandom.current().nextDouble()));
+        try {
+            retryThreadPool.schedule(() -> sendBatch(batch, attempt + 1), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            // the pipeline is stopping
+            return false;
+        }
+        log.info("Batch %s will be sent again in %s ms", batch, delayMs);
+        if (metrics != null)
+            metrics.batchRetried();
+        return true;
     }
 
     public void waitSendQueueIsEmpty(long timeoutMs) {
@@ -304,4 +804,43 @@ public final class DefaultPipeline {
             throw new RuntimeException("Not completed within timeout " + timeoutMs + " ms");
     }
 
+    /**
+     * A state owned by a single encoder thread
+     */
+    private static final class Encoder {
+        private final int partition;
+        private final MpscRingBuffer<LogRecord> buffer;
+        private final Batcher batcher;
+        private final Writer writer;
+        private final LogRecordBatch batch;
+
+        /**
+         * Off-heap storage for messages of this encoder's records, null if disabled
+         */
+        private final LogRecordArena arena;
+
+        private final AtomicBoolean drainRequested = new AtomicBoolean(false);
+
+        /**
+         * Batches of this encoder waiting for the previous one to be sent,
+         * guarded by {@code sendLock}
+         */
+        private final ArrayDeque<BinaryBatch> pendingSends = new ArrayDeque<>();
+
+        /**
+         * If true, a batch of this encoder is being sent,
+         * guarded by {@code sendLock}
+         */
+        private boolean sending = false;
+
+        Encoder(int partition, MpscRingBuffer<LogRecord> buffer, Batcher batcher, Writer writer, LogRecordArena arena) {
+            this.partition = partition;
+            this.buffer = buffer;
+            this.batcher = batcher;
+            this.writer = writer;
+            this.arena = arena;
+            this.batch = new LogRecordBatch(batcher.getCapacity());
+        }
+    }
+
 }
@@ -3,8 +3,13 @@ package com.github.loki4j.client.pipeline;
 import java.time.Duration;
 import java.util.Arrays;
 
+import com.github.loki4j.client.batch.ByteBufferQueue;
+import com.github.loki4j.client.batch.LogRecordStreamRegistry;
+
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.Timer;
@@ -15,6 +20,7 @@ import io.micrometer.core.instrument.Timer;
 public class Loki4jMetrics {
 
     private Timer appendTimer;
+    private Timer appendWaitTimer;
     private Timer encodeTimer;
     private Timer sendTimer;
 
@@ -24,7 +30,10 @@ public class Loki4jMetrics {
     private Counter batchesEncodedCounter;
     private Counter batchesSentCounter;
     private Counter sendErrorsCounter;
+    private Counter retriesCounter;
+    private Counter giveUpsCounter;
     private Counter droppedEventsCounter;
+    private Counter shedEventsCounter;
 
     public Loki4jMetrics(String appenderName) {
         var tags = Arrays.asList(
@@ -36,6 +45,12 @@ public class Loki4jMetrics {
             .tags(tags)
             .register(Metrics.globalRegistry);
 
+        appendWaitTimer = Timer
+            .builder("loki4j.append.wait")
+            .description("Time an append operation was blocked waiting for free space in the pipeline")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
         encodeTimer = Timer
             .builder("loki4j.encode.time")
             .description("Time for a batch encode operation")
@@ -79,11 +94,124 @@ public class Loki4jMetrics {
             .tags(tags)
             .register(Metrics.globalRegistry);
 
+        retriesCounter = Counter
+            .builder("loki4j.send.retries")
+            .description("Number of batches scheduled to be sent again after a failure")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        giveUpsCounter = Counter
+            .builder("loki4j.send.giveups")
+            .description("Number of failed batches dropped because max retries or retry budget was exhausted")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
         droppedEventsCounter = Counter
             .builder("loki4j.drop.events")
             .description("Number of events dropped due to backpressure settings")
             .tags(tags)
             .register(Metrics.globalRegistry);
+
+        shedEventsCounter = Counter
+            .builder("loki4j.shed.events")
+            .description("Number of events dropped by load shedding policy")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Registers metrics that report the state of the given stream registry
+     */
+    public static void registerStreamMetrics(String appenderName, LogRecordStreamRegistry registry) {
+        var tags = Arrays.asList(
+            Tag.of("appender", appenderName));
+
+        Gauge
+            .builder("loki4j.streams.count", registry, LogRecordStreamRegistry::size)
+            .description("Number of streams currently registered")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        FunctionCounter
+            .builder("loki4j.streams.created", registry, LogRecordStreamRegistry::createdCount)
+            .description("Number of streams created")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        FunctionCounter
+            .builder("loki4j.streams.evicted", registry, LogRecordStreamRegistry::evictedCount)
+            .description("Number of streams evicted because max number of streams was reached")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        FunctionCounter
+            .builder("loki4j.streams.overflow", registry, LogRecordStreamRegistry::overflowCount)
+            .description("Number of new label sets not registered because max number of streams was reached")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Registers metrics that report the depth of the pipeline's intake
+     */
+    public static void registerIntakeMetrics(String appenderName, DefaultPipeline pipeline) {
+        var tags = Arrays.asList(
+            Tag.of("appender", appenderName));
+
+        Gauge
+            .builder("loki4j.intake.items", pipeline, DefaultPipeline::getIntakeSizeItems)
+            .description("Number of events waiting in the intake buffers to be batched")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        Gauge
+            .builder("loki4j.intake.bytes", pipeline, DefaultPipeline::getIntakeSizeBytes)
+            .description("Number of bytes of messages accepted but not encoded yet")
+            .baseUnit("bytes")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Registers metrics that report the state of the buffer pool of the send queue
+     */
+    public static void registerSendQueueMetrics(String appenderName, ByteBufferQueue sendQueue) {
+        var tags = Arrays.asList(
+            Tag.of("appender", appenderName));
+
+        Gauge
+            .builder("loki4j.sendqueue.pool.bytes", sendQueue, ByteBufferQueue::getPoolSizeBytes)
+            .description("Total capacity of the buffers kept in the pool for reuse")
+            .baseUnit("bytes")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        FunctionCounter
+            .builder("loki4j.sendqueue.pool.hits", sendQueue, ByteBufferQueue::getPoolHitCount)
+            .description("Number of batch buffers taken from the pool")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        FunctionCounter
+            .builder("loki4j.sendqueue.pool.misses", sendQueue, ByteBufferQueue::getPoolMissCount)
+            .description("Number of batch buffers allocated because there was no suitable one in the pool")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Registers metrics that report the state of the send rate limiter
+     */
+    static void registerSendRateMetrics(String appenderName, SendRateLimiter rateLimiter) {
+        var tags = Arrays.asList(
+            Tag.of("appender", appenderName));
+
+        Gauge
+            .builder("loki4j.send.ratelimit", rateLimiter, SendRateLimiter::rate)
+            .description("Current limit of bytes sent to Loki per second, adapted to 429 responses")
+            .baseUnit("bytes")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
     }
 
     private void recordTimer(Timer timer, long startedNs) {
@@ -94,6 +222,15 @@ public class Loki4jMetrics {
         recordTimer(appendTimer, startedNs);
         if (dropped) droppedEventsCounter.increment();
     }
+
+    public void appendBlocked(long startedNs) {
+        recordTimer(appendWaitTimer, startedNs);
+    }
+
+    public void eventShed() {
+        droppedEventsCounter.increment();
+        shedEventsCounter.increment();
+    }
     
     public void batchEncoded(long startedNs, int count) {
         recordTimer(encodeTimer, startedNs);
@@ -107,4 +244,12 @@ public class Loki4jMetrics {
         batchesSentCounter.increment();
         if (failed) sendErrorsCounter.increment();
     }
+
+    public void batchRetried() {
+        retriesCounter.increment();
+    }
+
+    public void batchGivenUp() {
+        giveUpsCounter.increment();
+    }
 }
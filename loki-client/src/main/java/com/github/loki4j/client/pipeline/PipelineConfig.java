@@ -41,6 +41,33 @@ public class PipelineConfig {
             .setClientConfig(new HttpConfig.JavaHttpConfig(innerThreadsExpirationMs));
     }
 
+    /**
+     * What to do with a new event when the pipeline is full
+     */
+    public enum BackpressureMode {
+        /**
+         * Drop the event
+         */
+        DROP,
+        /**
+         * Block the calling thread until there is free space or the timeout expires,
+         * then drop the event
+         */
+        BLOCK,
+        /**
+         * Block the calling thread until there is free space
+         */
+        BLOCK_FOREVER;
+
+        public static BackpressureMode parse(String value) {
+            for (var m : values()) {
+                if (m.name().replace("_", "").equalsIgnoreCase(value))
+                    return m;
+            }
+            return null;
+        }
+    }
+
     /**
      * Name of this pipeline
      */
@@ -64,6 +91,18 @@ public class PipelineConfig {
      */
     public final long batchTimeoutMs;
 
+    /**
+     * Max time in milliseconds the oldest record of a batch should wait before it is sent,
+     * including observed HTTP round-trip time. If set, the effective batch size and
+     * linger time are tuned to the observed traffic. 0 disables adaptive batching
+     */
+    public final long batchTargetLatencyMs;
+
+    /**
+     * Number of batches per second each encoder tries to keep if adaptive batching is enabled
+     */
+    public final double batchTargetSendRate;
+
     /**
      * If true, log records in batch are sorted by timestamp.
      * If false, records will be sent to Loki in arrival order.
@@ -72,10 +111,26 @@ public class PipelineConfig {
     public final boolean sortByTime;
 
     /**
-     * If you use only one label for all log records, you can
-     * set this flag to true and save some CPU time on grouping records by label.
+     * Max number of events to keep in the intake buffer waiting to be batched.
+     * The value is rounded up to the nearest power of two.
+     * When the buffer is full, incoming log events are dropped
+     */
+    public final int bufferMaxItems;
+
+    /**
+     * Max number of bytes of messages of the events accepted but not encoded yet.
+     * When this limit is reached, incoming log events are dropped
+     */
+    public final long bufferMaxBytes;
+
+    /**
+     * Number of threads to encode batches in parallel.
+     * Records are distributed between the encoders by stream,
+     * so the order of records within each stream is preserved.
+     * Batches of the same encoder are sent one after another,
+     * so this is also the max number of batches being sent to Loki concurrently
      */
-    public final boolean staticLabels;
+    public final int encoderThreads;
 
     /**
      * Max number of bytes to keep in the send queue.
@@ -83,11 +138,70 @@ public class PipelineConfig {
      */
     public final long sendQueueMaxBytes;
 
+    /**
+     * Path to a file for keeping the send queue on disk, so unsent batches
+     * survive restarts. If not set, the send queue is kept in memory
+     */
+    public final String sendQueueFile;
+
+    /**
+     * Max number of bytes to keep in the send queue file.
+     * Used only when a new file is created
+     */
+    public final long sendQueueFileMaxBytes;
+
+    /**
+     * What to do with a new event when the intake buffer or the send queue is full
+     */
+    public final BackpressureMode backpressureMode;
+
+    /**
+     * Max time in milliseconds to block the calling thread in {@code BLOCK} mode
+     */
+    public final long backpressureTimeoutMs;
+
+    /**
+     * Max number of times to retry sending a batch if Loki responded with 429 or 5xx,
+     * or the connection could not be established. 0 disables retries
+     */
+    public final int maxRetries;
+
+    /**
+     * Delay in milliseconds before the first retry.
+     * The delay is doubled for each next retry, a random jitter is applied
+     */
+    public final long minRetryBackoffMs;
+
+    /**
+     * Max delay in milliseconds between retries
+     */
+    public final long maxRetryBackoffMs;
+
+    /**
+     * Number of retries allowed per each batch sent for the first time.
+     * When the budget is exhausted, failed batches are dropped without retries
+     */
+    public final double retryBudgetRatio;
+
+    /**
+     * Max number of bytes to send to Loki per second. The limit is lowered
+     * automatically when Loki responds with 429, and restored gradually
+     * on successful sends. 0 means no limit
+     */
+    public final long sendRateLimitBytesPerSec;
+
     /**
      * Use off-heap memory for storing intermediate data
      */
     public final boolean useDirectBuffers;
 
+    /**
+     * If true, UTF-8 messages of the records waiting to be encoded are kept
+     * in an off-heap arena sized from {@code sendQueueMaxBytes}.
+     * Messages that do not fit into the arena are kept on heap
+     */
+    public final boolean offHeapMessages;
+
     /**
      * If true, the pipeline will try to send all the remaining events on shutdown,
      * so the proper shutdown procedure might take longer.
@@ -123,17 +237,35 @@ public class PipelineConfig {
     public final Function<Object, Loki4jLogger> internalLoggingFactory;
 
     public PipelineConfig(String name, int batchMaxItems, int batchMaxBytes, long batchTimeoutMs,
-            boolean sortByTime, boolean staticLabels, long sendQueueMaxBytes, boolean useDirectBuffers,
+            long batchTargetLatencyMs, double batchTargetSendRate, boolean sortByTime, int bufferMaxItems,
+            long bufferMaxBytes, int encoderThreads, long sendQueueMaxBytes, String sendQueueFile,
+            long sendQueueFileMaxBytes, BackpressureMode backpressureMode, long backpressureTimeoutMs,
+            int maxRetries, long minRetryBackoffMs, long maxRetryBackoffMs, double retryBudgetRatio,
+            long sendRateLimitBytesPerSec, boolean useDirectBuffers, boolean offHeapMessages,
             boolean drainOnStop, boolean metricsEnabled, WriterFactory writerFactory, HttpConfig httpConfig,
             Function<HttpConfig, Loki4jHttpClient> httpClientFactory, Function<Object, Loki4jLogger> internalLoggingFactory) {
         this.name = name;
         this.batchMaxItems = batchMaxItems;
         this.batchMaxBytes = batchMaxBytes;
         this.batchTimeoutMs = batchTimeoutMs;
+        this.batchTargetLatencyMs = batchTargetLatencyMs;
+        this.batchTargetSendRate = batchTargetSendRate;
         this.sortByTime = sortByTime;
-        this.staticLabels = staticLabels;
+        this.bufferMaxItems = bufferMaxItems;
+        this.bufferMaxBytes = bufferMaxBytes;
+        this.encoderThreads = encoderThreads;
         this.sendQueueMaxBytes = sendQueueMaxBytes;
+        this.sendQueueFile = sendQueueFile;
+        this.sendQueueFileMaxBytes = sendQueueFileMaxBytes;
+        this.backpressureMode = backpressureMode;
+        this.backpressureTimeoutMs = backpressureTimeoutMs;
+        this.maxRetries = maxRetries;
+        this.minRetryBackoffMs = minRetryBackoffMs;
+        this.maxRetryBackoffMs = maxRetryBackoffMs;
+        this.retryBudgetRatio = retryBudgetRatio;
+        this.sendRateLimitBytesPerSec = sendRateLimitBytesPerSec;
         this.useDirectBuffers = useDirectBuffers;
+        this.offHeapMessages = offHeapMessages;
         this.drainOnStop = drainOnStop;
         this.metricsEnabled = metricsEnabled;
         this.writerFactory = writerFactory;
@@ -152,10 +284,24 @@ public class PipelineConfig {
         private int batchMaxItems = 1000;
         private int batchMaxBytes = 4 * 1024 * 1024;
         private long batchTimeoutMs = 60 * 1000;
+        private long batchTargetLatencyMs = 0;
+        private double batchTargetSendRate = 1.0;
         private boolean sortByTime = false;
-        private boolean staticLabels = false;
+        private int bufferMaxItems = 64 * 1024;
+        private long bufferMaxBytes = batchMaxBytes * 10;
+        private int encoderThreads = 1;
         private long sendQueueMaxBytes = batchMaxBytes * 10;
+        private String sendQueueFile = null;
+        private long sendQueueFileMaxBytes = 256L * 1024 * 1024;
+        private BackpressureMode backpressureMode = BackpressureMode.DROP;
+        private long backpressureTimeoutMs = 1000;
+        private int maxRetries = 5;
+        private long minRetryBackoffMs = 500;
+        private long maxRetryBackoffMs = 60 * 1000;
+        private double retryBudgetRatio = 0.2;
+        private long sendRateLimitBytesPerSec = 0;
         private boolean useDirectBuffers = true;
+        private boolean offHeapMessages = false;
         private boolean drainOnStop = true;
         private boolean metricsEnabled = false;
         private WriterFactory writer = json;
@@ -169,10 +315,24 @@ public class PipelineConfig {
                 batchMaxItems,
                 batchMaxBytes,
                 batchTimeoutMs,
+                batchTargetLatencyMs,
+                batchTargetSendRate,
                 sortByTime,
-                staticLabels,
+                bufferMaxItems,
+                bufferMaxBytes,
+                encoderThreads,
                 sendQueueMaxBytes,
+                sendQueueFile,
+                sendQueueFileMaxBytes,
+                backpressureMode,
+                backpressureTimeoutMs,
+                maxRetries,
+                minRetryBackoffMs,
+                maxRetryBackoffMs,
+                retryBudgetRatio,
+                sendRateLimitBytesPerSec,
                 useDirectBuffers,
+                offHeapMessages,
                 drainOnStop,
                 metricsEnabled,
                 writer,
@@ -201,13 +361,33 @@ public class PipelineConfig {
             return this;
         }
 
+        public Builder setBatchTargetLatencyMs(long batchTargetLatencyMs) {
+            this.batchTargetLatencyMs = batchTargetLatencyMs;
+            return this;
+        }
+
+        public Builder setBatchTargetSendRate(double batchTargetSendRate) {
+            this.batchTargetSendRate = batchTargetSendRate;
+            return this;
+        }
+
         public Builder setSortByTime(boolean sortByTime) {
             this.sortByTime = sortByTime;
             return this;
         }
 
-        public Builder setStaticLabels(boolean staticLabels) {
-            this.staticLabels = staticLabels;
+        public Builder setBufferMaxItems(int bufferMaxItems) {
+            this.bufferMaxItems = bufferMaxItems;
+            return this;
+        }
+
+        public Builder setBufferMaxBytes(long bufferMaxBytes) {
+            this.bufferMaxBytes = bufferMaxBytes;
+            return this;
+        }
+
+        public Builder setEncoderThreads(int encoderThreads) {
+            this.encoderThreads = encoderThreads;
             return this;
         }
 
@@ -216,11 +396,61 @@ public class PipelineConfig {
             return this;
         }
 
+        public Builder setSendQueueFile(String sendQueueFile) {
+            this.sendQueueFile = sendQueueFile;
+            return this;
+        }
+
+        public Builder setSendQueueFileMaxBytes(long sendQueueFileMaxBytes) {
+            this.sendQueueFileMaxBytes = sendQueueFileMaxBytes;
+            return this;
+        }
+
+        public Builder setBackpressureMode(BackpressureMode backpressureMode) {
+            this.backpressureMode = backpressureMode;
+            return this;
+        }
+
+        public Builder setBackpressureTimeoutMs(long backpressureTimeoutMs) {
+            this.backpressureTimeoutMs = backpressureTimeoutMs;
+            return this;
+        }
+
+        public Builder setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public Builder setMinRetryBackoffMs(long minRetryBackoffMs) {
+            this.minRetryBackoffMs = minRetryBackoffMs;
+            return this;
+        }
+
+        public Builder setMaxRetryBackoffMs(long maxRetryBackoffMs) {
+            this.maxRetryBackoffMs = maxRetryBackoffMs;
+            return this;
+        }
+
+        public Builder setRetryBudgetRatio(double retryBudgetRatio) {
+            this.retryBudgetRatio = retryBudgetRatio;
+            return this;
+        }
+
+        public Builder setSendRateLimitBytesPerSec(long sendRateLimitBytesPerSec) {
+            this.sendRateLimitBytesPerSec = sendRateLimitBytesPerSec;
+            return this;
+        }
+
         public Builder setUseDirectBuffers(boolean useDirectBuffers) {
             this.useDirectBuffers = useDirectBuffers;
             return this;
         }
 
+        public Builder setOffHeapMessages(boolean offHeapMessages) {
+            this.offHeapMessages = offHeapMessages;
+            return this;
+        }
+
         public Builder setDrainOnStop(boolean drainOnStop) {
             this.drainOnStop = drainOnStop;
             return this;
@@ -0,0 +1,70 @@
+package com.github.loki4j.client.pipeline;
+
+/**
+ * Limits the number of retries relative to the number of batches sent,
+ * so retries of failed batches do not take over the send capacity
+ * while Loki is unavailable.
+ * <p>
+ * Each batch sent for the first time deposits {@code ratio} of a retry,
+ * each retry withdraws one. A small reserve is refilled over time,
+ * so batches can be retried even if there is little traffic.
+ * <p>
+ * All the methods are thread-safe.
+ */
+final class RetryBudget {
+
+    /**
+     * Number of retries added to the reserve each second
+     */
+    private static final double RESERVE_PER_SECOND = 1.0;
+
+    private final double ratio;
+    private final double maxBalance;
+
+    /**
+     * Number of retries available, guarded by {@code this}
+     */
+    private double balance;
+
+    private long lastRefillMs;
+
+    /**
+     * @param ratio Number of retries allowed per each batch sent
+     * @param maxBalance Max number of retries that can be accumulated
+     * @param nowMs Current time in milliseconds
+     */
+    RetryBudget(double ratio, double maxBalance, long nowMs) {
+        this.ratio = ratio;
+        this.maxBalance = maxBalance;
+        this.balance = maxBalance;
+        this.lastRefillMs = nowMs;
+    }
+
+    /**
+     * Reports a batch sent for the first time
+     */
+    synchronized void deposit() {
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    /**
+     * Takes one retry from the budget
+     *
+     * @return true if the retry is allowed, false if the budget is exhausted
+     */
+    synchronized boolean tryWithdraw(long nowMs) {
+        if (nowMs > lastRefillMs) {
+            balance = Math.min(maxBalance, balance + (nowMs - lastRefillMs) * RESERVE_PER_SECOND / 1000);
+            lastRefillMs = nowMs;
+        }
+        if (balance < 1.0)
+            return false;
+        balance -= 1.0;
+        return true;
+    }
+
+    synchronized double balance() {
+        return balance;
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.github.loki4j.client.pipeline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits the number of bytes sent to Loki per second.
+ * <p>
+ * A batch is charged when it is sent, so the bucket can go into debt
+ * if the batch is larger than the tokens available. Next batches wait
+ * until the debt is paid off.
+ * <p>
+ * The rate adapts to the feedback from Loki: it is halved on each
+ * 429 response and restored gradually on each successful send.
+ * A delay requested in Retry-After header stops all the sends until it expires.
+ * <p>
+ * All the methods are thread-safe.
+ */
+final class SendRateLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The rate is never reduced lower than this share of the max rate
+     */
+    private static final double MIN_RATE_SHARE = 1.0 / 64;
+
+    /**
+     * Share of the max rate restored on each successful send
+     */
+    private static final double RECOVERY_SHARE = 1.0 / 20;
+
+    private final double maxRate;
+    private final double minRate;
+
+    /**
+     * Current rate in bytes per second, guarded by {@code this}
+     */
+    private double rate;
+
+    /**
+     * Number of bytes that can be sent right away, negative if in debt
+     */
+    private double tokens;
+
+    private long lastRefillNs;
+
+    /**
+     * Time before which nothing should be sent, as requested by Loki
+     */
+    private long blockedUntilNs;
+
+    /**
+     * @param maxBytesPerSecond Max number of bytes to send per second,
+     * also the max number of bytes that can be sent in a burst
+     * @param nowNs Current time in nanoseconds
+     */
+    SendRateLimiter(long maxBytesPerSecond, long nowNs) {
+        this.maxRate = maxBytesPerSecond;
+        this.minRate = Math.max(1.0, maxBytesPerSecond * MIN_RATE_SHARE);
+        this.rate = maxRate;
+        this.tokens = maxRate;
+        this.lastRefillNs = nowNs;
+        this.blockedUntilNs = nowNs;
+    }
+
+    /**
+     * Charges the given number of bytes
+     *
+     * @return Time in nanoseconds to wait before sending these bytes, 0 if no need to wait
+     */
+    synchronized long acquire(int bytes, long nowNs) {
+        refill(nowNs);
+        var waitNs = Math.max(0L, blockedUntilNs - nowNs);
+        if (tokens < 0)
+            waitNs = Math.max(waitNs, (long) (-tokens / rate * NANOS_PER_SECOND));
+        tokens -= bytes;
+        return waitNs;
+    }
+
+    /**
+     * Reports that Loki rejected a batch because of its rate limits
+     *
+     * @param retryAfterMs Delay requested by Loki, or -1 if not set
+     */
+    synchronized void throttled(long retryAfterMs, long nowNs) {
+        refill(nowNs);
+        rate = Math.max(minRate, rate / 2);
+        // no bursts until the rate is restored
+        tokens = Math.min(tokens, 0.0);
+        if (retryAfterMs > 0)
+            blockedUntilNs = Math.max(blockedUntilNs, nowNs + TimeUnit.MILLISECONDS.toNanos(retryAfterMs));
+    }
+
+    /**
+     * Reports that Loki accepted a batch
+     */
+    synchronized void accepted() {
+        rate = Math.min(maxRate, rate + maxRate * RECOVERY_SHARE);
+    }
+
+    /**
+     * Current rate in bytes per second
+     */
+    synchronized double rate() {
+        return rate;
+    }
+
+    private void refill(long nowNs) {
+        if (nowNs <= lastRefillNs)
+            return;
+        tokens = Math.min(rate, tokens + rate * (nowNs - lastRefillNs) / NANOS_PER_SECOND);
+        lastRefillNs = nowNs;
+    }
+
+}
@@ -16,9 +16,23 @@ public class Loki4jThreadFactory implements ThreadFactory {
 
     @Override
     public Thread newThread(Runnable r) {
-        var t = new Thread(r, namePrefix + "-" + counter.getAndIncrement());
+        var t = new Loki4jThread(r, namePrefix + "-" + counter.getAndIncrement());
         t.setDaemon(true);
         return t;
     }
-    
+
+    /**
+     * Checks if the thread is created by this factory
+     */
+    public static boolean isLoki4jThread(Thread thread) {
+        return thread instanceof Loki4jThread;
+    }
+
+    private static final class Loki4jThread extends Thread {
+        Loki4jThread(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
+
 }
@@ -0,0 +1,97 @@
+package com.github.loki4j.client.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-capacity open-addressing hash map from primitive {@code long} keys
+ * to non-negative {@code int} values.
+ * <p>
+ * Each slot is stamped with the generation it was written in, so
+ * {@code clear()} just starts a new generation and takes O(1) time
+ * regardless of the capacity.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class LongIntHashMap {
+
+    private final long[] keys;
+    private final int[] values;
+    private final int[] stamps;
+    private final int mask;
+
+    /**
+     * Current generation, slots with other stamps are considered empty
+     */
+    private int generation = 1;
+    private int size = 0;
+    private final int maxSize;
+
+    /**
+     * @param maxSize Max number of entries in the map,
+     * the actual number of slots is at least twice as large
+     */
+    public LongIntHashMap(int maxSize) {
+        if (maxSize < 1 || maxSize > (1 << 29))
+            throw new IllegalArgumentException("Map size is out of range: " + maxSize);
+        var capacity = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        stamps = new int[capacity];
+        mask = capacity - 1;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a value for the given key, or -1 if there is no such key in the map
+     */
+    public int get(long key) {
+        for (int i = index(key); stamps[i] == generation; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return values[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Puts a value for the given key, replacing the previous one if any
+     *
+     * @param value A non-negative value
+     */
+    public void put(long key, int value) {
+        var i = index(key);
+        for (; stamps[i] == generation; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        if (size == maxSize)
+            throw new IllegalStateException("Map is full, max size: " + maxSize);
+        stamps[i] = generation;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /**
+     * Removes all the entries from the map in O(1) time
+     */
+    public void clear() {
+        if (++generation == 0) {
+            // stamps wrapped around, old ones might look current again
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int index(long key) {
+        var h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+}
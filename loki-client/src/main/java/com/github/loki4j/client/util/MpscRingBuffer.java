@@ -0,0 +1,199 @@
+package com.github.loki4j.client.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free multi-producer/single-consumer queue backed by a
+ * preallocated ring of slots.
+ * <p>
+ * Producers claim a slot by advancing the producer sequence with CAS and
+ * then publish the element into the claimed slot. The consumer claims all
+ * the slots published so far at once and then reads them one by one without
+ * touching the producer sequence again.
+ * <p>
+ * The consumer can park until the buffer is not empty. Producers wake it up
+ * only when they add an element to the empty buffer.
+ * <p>
+ * Methods {@code offer()}, {@code size()}, and {@code wakeUpConsumer()} are thread-safe.
+ * All the other methods must be called only from a single consumer thread.
+ */
+public final class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+
+    private final Sequence producerIndex = new Sequence();
+    private final Sequence consumerIndex = new Sequence();
+
+    /**
+     * Producer index as seen by the consumer last time.
+     * Accessed only from the consumer thread.
+     */
+    private long producerIndexCache = 0L;
+
+    /**
+     * A consumer thread to wake up once new elements are available
+     */
+    private volatile Thread consumer;
+
+    /**
+     * @param capacity Max number of elements in the buffer,
+     * it will be rounded up to the nearest power of two
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Ring buffer capacity is out of range: " + capacity);
+        var actualCapacity = Integer.highestOneBit(capacity);
+        if (actualCapacity < capacity)
+            actualCapacity <<= 1;
+        slots = new AtomicReferenceArray<>(actualCapacity);
+        mask = actualCapacity - 1;
+    }
+
+    /**
+     * Adds an element to the buffer if there is a free slot for it.
+     * This method is thread-safe.
+     *
+     * @return false if the buffer is full, true otherwise
+     */
+    public boolean offer(E element) {
+        if (element == null)
+            throw new NullPointerException("Ring buffer does not accept null elements");
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() > mask)
+                return false;
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        // volatile write, so either the parking consumer sees this element,
+        // or this producer sees the consumer is waiting for it
+        slots.set((int)index & mask, element);
+        // consumer has taken everything before this element,
+        // so it might be waiting for new elements
+        if (consumerIndex.get() == index)
+            wakeUpConsumer();
+        return true;
+    }
+
+    /**
+     * Returns the head element of the buffer without removing it,
+     * or null if the buffer is empty.
+     * The element claimed by a producer but not published yet is
+     * not visible for this method.
+     */
+    public E peek() {
+        var index = consumerIndex.get();
+        if (index == producerIndexCache) {
+            producerIndexCache = producerIndex.get();
+            if (index == producerIndexCache)
+                return null;
+        }
+        return slots.get((int)index & mask);
+    }
+
+    /**
+     * Removes and returns the head element of the buffer,
+     * or null if the buffer is empty.
+     */
+    public E poll() {
+        var element = peek();
+        if (element != null) {
+            var index = consumerIndex.get();
+            slots.lazySet((int)index & mask, null);
+            consumerIndex.lazySet(index + 1);
+        }
+        return element;
+    }
+
+    /**
+     * Removes and returns the head element of the buffer.
+     * Unlike {@code poll()} throws an exception if the buffer is empty.
+     */
+    public E remove() {
+        var element = poll();
+        if (element == null)
+            throw new IllegalStateException("Ring buffer is empty");
+        return element;
+    }
+
+    /**
+     * Parks the consumer thread until the buffer is not empty,
+     * the timeout expires, or {@code wakeUpConsumer()} is called.
+     *
+     * @param timeoutNs Max time to wait in nanoseconds,
+     * {@code Long.MAX_VALUE} means wait without timeout
+     */
+    public void awaitNotEmpty(long timeoutNs) {
+        consumer = Thread.currentThread();
+        // full fence on the consumer index ensures that either producers see
+        // the buffer is empty and wake us up, or we see their new elements
+        consumerIndex.set(consumerIndex.get());
+        if (!isEmpty())
+            return;
+        if (timeoutNs == Long.MAX_VALUE)
+            LockSupport.park(this);
+        else
+            LockSupport.parkNanos(this, timeoutNs);
+    }
+
+    /**
+     * Wakes up the consumer thread if it is waiting in {@code awaitNotEmpty()}.
+     * This method is thread-safe.
+     */
+    public void wakeUpConsumer() {
+        var t = consumer;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    /**
+     * Checks if there is no head element available to the consumer.
+     * The element claimed by a producer but not published yet is
+     * treated as absent, so the consumer parks instead of spinning on it
+     */
+    public boolean isEmpty() {
+        return slots.get((int)consumerIndex.get() & mask) == null;
+    }
+
+    /**
+     * Returns an approximate number of elements in the buffer.
+     * This method is thread-safe.
+     */
+    public int size() {
+        var size = producerIndex.get() - consumerIndex.get();
+        return (int)Math.max(0L, Math.min(size, mask + 1));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * A sequence counter padded from both sides to keep it
+     * in its own cache line, so producers updating one counter
+     * do not invalidate the other one for the consumer
+     */
+    private static final class Sequence {
+        private static final int IDX = 8;
+        private final AtomicLongArray data = new AtomicLongArray(IDX * 2);
+
+        long get() {
+            return data.get(IDX);
+        }
+
+        void set(long value) {
+            data.set(IDX, value);
+        }
+
+        void lazySet(long value) {
+            data.lazySet(IDX, value);
+        }
+
+        boolean compareAndSet(long expected, long value) {
+            return data.compareAndSet(IDX, expected, value);
+        }
+    }
+
+}
@@ -24,4 +24,41 @@ public class StringUtils {
         return count;
     }
 
+    /**
+     * Encode given string to UTF-8 into the destination array starting from 0.
+     * The destination array must be large enough to hold the result, i.e.
+     * at least {@code input.length() * 3} bytes.
+     * Unpaired surrogates are replaced with '?', the same way as
+     * {@link String#getBytes(java.nio.charset.Charset)} does.
+     *
+     * @return number of bytes written
+     */
+    public static int encodeUtf8(CharSequence input, byte[] dst) {
+        int pos = 0;
+        for (int i = 0, len = input.length(); i < len; i++) {
+            char ch = input.charAt(i);
+            if (ch <= 0x7F) {
+                dst[pos++] = (byte) ch;
+            } else if (ch <= 0x7FF) {
+                dst[pos++] = (byte) (0xC0 | (ch >> 6));
+                dst[pos++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                if (Character.isHighSurrogate(ch) && i + 1 < len && Character.isLowSurrogate(input.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(ch, input.charAt(++i));
+                    dst[pos++] = (byte) (0xF0 | (cp >> 18));
+                    dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    dst[pos++] = '?';
+                }
+            } else {
+                dst[pos++] = (byte) (0xE0 | (ch >> 12));
+                dst[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                dst[pos++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        return pos;
+    }
+
 }
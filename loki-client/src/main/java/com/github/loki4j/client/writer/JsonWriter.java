@@ -6,6 +6,7 @@ import java.nio.ByteBuffer;
 
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.batch.LogRecordStream;
 import com.github.loki4j.pkg.dslplatform.json.RawJsonWriter;
 
 public final class JsonWriter implements Writer {
@@ -18,11 +19,11 @@ public final class JsonWriter implements Writer {
 
     public void serializeBatch(LogRecordBatch batch) {
         var currentStream = batch.get(0).stream;
-        beginStreams(batch.get(0), currentStream.labels);
+        beginStreams(batch.get(0), currentStream);
         for (int i = 1; i < batch.size(); i++) {
             if (batch.get(i).stream != currentStream) {
                 currentStream = batch.get(i).stream;
-                nextStream(batch.get(i), currentStream.labels);
+                nextStream(batch.get(i), currentStream);
             }
             else {
                 nextRecord(batch.get(i));
@@ -47,26 +48,24 @@ public final class JsonWriter implements Writer {
         raw.reset();
     }
 
-    private void beginStreams(LogRecord firstRecord, String[] firstLabels) {
+    private void beginStreams(LogRecord firstRecord, LogRecordStream firstStream) {
         raw.writeByte(OBJECT_START);
         raw.writeAsciiString("streams");
         raw.writeByte(SEMI);
         raw.writeByte(ARRAY_START);
-        stream(firstRecord, firstLabels);
+        stream(firstRecord, firstStream);
     }
 
-    private void nextStream(LogRecord firstRecord, String[] labels) {
+    private void nextStream(LogRecord firstRecord, LogRecordStream stream) {
         raw.writeByte(ARRAY_END);
         raw.writeByte(OBJECT_END);
         raw.writeByte(COMMA);
-        stream(firstRecord, labels);
+        stream(firstRecord, stream);
     }
 
-    private void stream(LogRecord firstRecord, String[] labels) {
+    private void stream(LogRecord firstRecord, LogRecordStream stream) {
         raw.writeByte(OBJECT_START);
-        raw.writeAsciiString("stream");
-        raw.writeByte(SEMI);
-        labels(labels);
+        raw.writeRawBytes(stream.jsonLabels(JsonWriter::streamLabels));
         raw.writeByte(COMMA);
         raw.writeAsciiString("values");
         raw.writeByte(SEMI);
@@ -74,7 +73,18 @@ public final class JsonWriter implements Writer {
         record(firstRecord);
     }
 
-    private void labels(String[] labels) {
+    /**
+     * Serializes labels as {@code "stream":{...}} JSON fragment
+     */
+    static byte[] streamLabels(String[] labels) {
+        var raw = new RawJsonWriter(64);
+        raw.writeAsciiString("stream");
+        raw.writeByte(SEMI);
+        labels(raw, labels);
+        return raw.toByteArray();
+    }
+
+    private static void labels(RawJsonWriter raw, String[] labels) {
         raw.writeByte(OBJECT_START);
         if (labels.length > 0) {
             for (int i = 0; i < labels.length; i+=2) {
@@ -95,22 +105,18 @@ public final class JsonWriter implements Writer {
 
     private void record(LogRecord record) {
         raw.writeByte(ARRAY_START);
-        raw.writeAsciiString("" + record.timestampMs + nanosToStr(record.nanos));
+        // timestamp in nanoseconds: milliseconds followed by 6 digits of nanos
+        raw.writeQuotedNumber(record.timestampMs, record.nanos, 6);
         raw.writeByte(COMMA);
-        raw.writeString(record.message);
+        if (record.messageUtf8 != null)
+            raw.writeUtf8String(record.messageUtf8);
+        else if (record.segment != null)
+            raw.writeUtf8String(record.segment.buffer, record.messageOffset, record.messageUtf8SizeBytes);
+        else
+            raw.writeString(record.message);
         raw.writeByte(ARRAY_END);
     }
 
-    private String nanosToStr(int nanos) {
-        var c = new char[6];
-        var rem = nanos;
-        for (int i = c.length - 1; i >= 0 ; i--) {
-            c[i] = (char)('0' + rem % 10);
-            rem = rem / 10;
-        }
-        return new String(c);
-    }
-
     private void endStreams() {
         raw.writeByte(ARRAY_END);
         raw.writeByte(OBJECT_END);
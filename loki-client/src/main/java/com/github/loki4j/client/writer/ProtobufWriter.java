@@ -2,25 +2,39 @@ package com.github.loki4j.client.writer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.batch.LogRecordStream;
 import com.github.loki4j.client.util.ByteBufferFactory;
-import com.github.loki4j.pkg.google.protobuf.Timestamp;
-import com.github.loki4j.pkg.loki.protobuf.Logproto.EntryAdapter;
-import com.github.loki4j.pkg.loki.protobuf.Logproto.PushRequest;
-import com.github.loki4j.pkg.loki.protobuf.Logproto.StreamAdapter;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.xerial.snappy.Snappy;
 
 public final class ProtobufWriter implements Writer {
 
+    // field numbers from logproto.proto and timestamp.proto
+    private static final int PUSH_REQUEST_STREAMS = 1;
+    private static final int STREAM_LABELS = 1;
+    private static final int STREAM_ENTRIES = 2;
+    private static final int ENTRY_TIMESTAMP = 1;
+    private static final int ENTRY_LINE = 2;
+    private static final int TIMESTAMP_SECONDS = 1;
+    private static final int TIMESTAMP_NANOS = 2;
+
     private final ByteBuffer uncompressed;
     private final ByteBuffer compressed;
 
-    private PushRequest.Builder request;
-    private StreamAdapter.Builder stream;
+    /**
+     * Serialized sizes of entries and streams computed during the first pass.
+     * These arrays are reused between batches
+     */
+    private int[] entrySizes = new int[0];
+    private int[] streamSizes = new int[0];
+    private byte[][] streamLabels = new byte[0][];
+
     private int size = 0;
 
     public ProtobufWriter(int capacity, ByteBufferFactory bbFactory) {
@@ -28,30 +42,125 @@ public final class ProtobufWriter implements Writer {
         // allocating x1.5 for compressed buffer, as compressed size
         // may be larger than uncompressed
         this.compressed = bbFactory.allocate(capacity + capacity / 2);
-        this.request = PushRequest.newBuilder();
     }
 
+    /**
+     * Writes the batch in the wire format of {@code PushRequest} message.
+     * <p>
+     * The first pass computes the sizes of all the nested messages,
+     * the second one writes them with the length prefixes directly
+     * to the output buffer. The output is the same as produced by
+     * the generated protobuf classes, but no intermediate objects
+     * are created per log record.
+     */
     public void serializeBatch(LogRecordBatch batch) {
-        var currentStream = batch.get(0).stream;
-        nextStream(currentStream.labels);
-        for (int i = 0; i < batch.size(); i++) {
-            if (batch.get(i).stream != currentStream) {
-                currentStream = batch.get(i).stream;
-                nextStream(currentStream.labels);
-            }
-            nextEntry(batch.get(i));
+        if (entrySizes.length < batch.size()) {
+            entrySizes = new int[batch.size()];
+            streamSizes = new int[batch.size()];
+            streamLabels = new byte[batch.size()][];
         }
+        var streamsCount = computeSizes(batch);
         try {
+            var writer = CodedOutputStream.newInstance(uncompressed);
+            writeStreams(batch, streamsCount, writer);
+            writer.flush();
             endStreams();
         } catch (IOException e) {
             throw new RuntimeException("Protobuf encoding error", e);
         }
     }
 
-    private void nextStream(String[] labelSet) {
-        stream = request
-            .addStreamsBuilder()
-            .setLabels(label(labelSet));
+    private int computeSizes(LogRecordBatch batch) {
+        LogRecordStream currentStream = null;
+        var s = -1;
+        for (int i = 0; i < batch.size(); i++) {
+            var record = batch.get(i);
+            if (record.stream != currentStream) {
+                currentStream = record.stream;
+                s++;
+                streamLabels[s] = currentStream.protobufLabels(ProtobufWriter::labelBytes);
+                streamSizes[s] = streamLabels[s].length == 0
+                    ? 0
+                    : CodedOutputStream.computeByteArraySize(STREAM_LABELS, streamLabels[s]);
+            }
+            var tsSize = timestampSize(record);
+            var entrySize = CodedOutputStream.computeTagSize(ENTRY_TIMESTAMP)
+                + CodedOutputStream.computeUInt32SizeNoTag(tsSize) + tsSize;
+            if (record.messageUtf8SizeBytes > 0)
+                entrySize += record.message == null
+                    ? CodedOutputStream.computeTagSize(ENTRY_LINE)
+                        + CodedOutputStream.computeUInt32SizeNoTag(record.messageUtf8SizeBytes)
+                        + record.messageUtf8SizeBytes
+                    : CodedOutputStream.computeStringSize(ENTRY_LINE, record.message);
+            entrySizes[i] = entrySize;
+            streamSizes[s] += CodedOutputStream.computeTagSize(STREAM_ENTRIES)
+                + CodedOutputStream.computeUInt32SizeNoTag(entrySize) + entrySize;
+        }
+        return s + 1;
+    }
+
+    private void writeStreams(LogRecordBatch batch, int streamsCount, CodedOutputStream writer) throws IOException {
+        LogRecordStream currentStream = null;
+        var s = -1;
+        for (int i = 0; i < batch.size(); i++) {
+            var record = batch.get(i);
+            if (record.stream != currentStream) {
+                currentStream = record.stream;
+                s++;
+                writer.writeTag(PUSH_REQUEST_STREAMS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                writer.writeUInt32NoTag(streamSizes[s]);
+                // labels are valid UTF-8, so writing them as bytes
+                // is the same as writing them as a string
+                if (streamLabels[s].length > 0)
+                    writer.writeByteArray(STREAM_LABELS, streamLabels[s]);
+                streamLabels[s] = null;
+            }
+            writer.writeTag(STREAM_ENTRIES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            writer.writeUInt32NoTag(entrySizes[i]);
+            writer.writeTag(ENTRY_TIMESTAMP, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            writer.writeUInt32NoTag(timestampSize(record));
+            var seconds = seconds(record);
+            if (seconds != 0L)
+                writer.writeInt64(TIMESTAMP_SECONDS, seconds);
+            var nanos = nanos(record);
+            if (nanos != 0)
+                writer.writeInt32(TIMESTAMP_NANOS, nanos);
+            if (record.messageUtf8 != null) {
+                if (record.messageUtf8.length > 0)
+                    writer.writeByteArray(ENTRY_LINE, record.messageUtf8);
+            } else if (record.segment != null) {
+                if (record.messageUtf8SizeBytes > 0) {
+                    writer.writeTag(ENTRY_LINE, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    writer.writeUInt32NoTag(record.messageUtf8SizeBytes);
+                    writer.write(record.segment.view(record.messageOffset, record.messageUtf8SizeBytes));
+                }
+            } else if (!record.message.isEmpty()) {
+                writer.writeString(ENTRY_LINE, record.message);
+            }
+        }
+    }
+
+    private static long seconds(LogRecord record) {
+        return record.timestampMs / 1000;
+    }
+
+    private static int nanos(LogRecord record) {
+        return (int)(record.timestampMs % 1000) * 1_000_000 + record.nanos;
+    }
+
+    private static int timestampSize(LogRecord record) {
+        var size = 0;
+        var seconds = seconds(record);
+        if (seconds != 0L)
+            size += CodedOutputStream.computeInt64Size(TIMESTAMP_SECONDS, seconds);
+        var nanos = nanos(record);
+        if (nanos != 0)
+            size += CodedOutputStream.computeInt32Size(TIMESTAMP_NANOS, nanos);
+        return size;
+    }
+
+    static byte[] labelBytes(String[] labels) {
+        return label(labels).getBytes(StandardCharsets.UTF_8);
     }
 
     static String label(String[] labels) {
@@ -72,18 +181,7 @@ public final class ProtobufWriter implements Writer {
         return s.toString();
     }
 
-    private void nextEntry(LogRecord record) {
-        stream.addEntries(EntryAdapter.newBuilder()
-            .setTimestamp(Timestamp.newBuilder()
-                .setSeconds(record.timestampMs / 1000)
-                .setNanos((int)(record.timestampMs % 1000) * 1_000_000 + record.nanos))
-            .setLine(record.message));
-    }
-
     private void endStreams() throws IOException {
-        var writer = CodedOutputStream.newInstance(uncompressed);
-        request.build().writeTo(writer);
-        writer.flush();
         uncompressed.flip();
         if (uncompressed.hasArray()) {
             size = Snappy.compress(
@@ -119,8 +217,6 @@ public final class ProtobufWriter implements Writer {
      * Resets the writer
      */
     public final void reset() {
-        this.request = PushRequest.newBuilder();
-        stream = null;
         size = 0;
         uncompressed.clear();
         compressed.clear();
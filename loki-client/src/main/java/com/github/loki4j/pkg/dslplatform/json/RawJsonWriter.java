@@ -100,6 +100,211 @@ public class RawJsonWriter {
         buffer[position++] = value;
     }
 
+    /**
+     * Write bytes into the JSON as is.
+     * Bytes must contain a valid JSON fragment.
+     *
+     * @param value bytes to write
+     */
+    public final void writeRawBytes(final byte[] value) {
+        final int len = value.length;
+        if (position + len >= buffer.length) {
+            enlargeOrFlush(position, len);
+        }
+        System.arraycopy(value, 0, buffer, position, len);
+        position += len;
+    }
+
+    private static final byte[] DIGIT_TENS = new byte[100];
+    private static final byte[] DIGIT_ONES = new byte[100];
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_TENS[i] = (byte) ('0' + i / 10);
+            DIGIT_ONES[i] = (byte) ('0' + i % 10);
+        }
+    }
+
+    /**
+     * Write a quoted number consisting of the integer part followed by
+     * the fraction zero-padded to the given number of digits, e.g.
+     * {@code (123, 45, 6)} is written as {@code "123000045"}.
+     * Only the lowest {@code fractionDigits} digits of the fraction are written.
+     * No objects are allocated unless the integer part is {@code Long.MIN_VALUE}.
+     *
+     * @param value integer part of the number
+     * @param fraction non-negative fraction part of the number
+     * @param fractionDigits number of digits to write for the fraction
+     */
+    public final void writeQuotedNumber(final long value, final int fraction, final int fractionDigits) {
+        if (value == Long.MIN_VALUE) {
+            // can not be negated, so fall back to the slow path
+            final String str = Long.toString(value);
+            writeByte(QUOTE);
+            for (int i = 0; i < str.length(); i++)
+                writeByte((byte) str.charAt(i));
+            writeFractionAndQuote(fraction, fractionDigits);
+            return;
+        }
+        // sign + 19 digits of long + fraction + 2 quotes
+        final int maxLen = 22 + fractionDigits;
+        if (position + maxLen >= buffer.length) {
+            enlargeOrFlush(position, maxLen);
+        }
+        final byte[] _result = buffer;
+        int cur = position;
+        _result[cur++] = QUOTE;
+        long v = value;
+        if (v < 0) {
+            _result[cur++] = '-';
+            v = -v;
+        }
+        cur += digitsCount(v);
+        int i = cur;
+        // same approach as in Long.toString: two digits per division
+        while (v > Integer.MAX_VALUE) {
+            final long q = v / 100;
+            final int r = (int) (v - q * 100);
+            v = q;
+            _result[--i] = DIGIT_ONES[r];
+            _result[--i] = DIGIT_TENS[r];
+        }
+        int iv = (int) v;
+        while (iv >= 100) {
+            final int q = iv / 100;
+            final int r = iv - q * 100;
+            iv = q;
+            _result[--i] = DIGIT_ONES[r];
+            _result[--i] = DIGIT_TENS[r];
+        }
+        if (iv >= 10) {
+            _result[--i] = DIGIT_ONES[iv];
+            _result[--i] = DIGIT_TENS[iv];
+        } else {
+            _result[--i] = (byte) ('0' + iv);
+        }
+        position = cur;
+        writeFractionAndQuote(fraction, fractionDigits);
+    }
+
+    private void writeFractionAndQuote(final int fraction, final int fractionDigits) {
+        if (position + fractionDigits + 1 >= buffer.length) {
+            enlargeOrFlush(position, fractionDigits + 1);
+        }
+        final byte[] _result = buffer;
+        final int cur = position + fractionDigits;
+        _result[cur] = QUOTE;
+        int i = cur;
+        int rem = fraction;
+        int digits = fractionDigits;
+        while (digits >= 2) {
+            final int q = rem / 100;
+            final int r = rem - q * 100;
+            rem = q;
+            _result[--i] = DIGIT_ONES[r];
+            _result[--i] = DIGIT_TENS[r];
+            digits -= 2;
+        }
+        if (digits == 1)
+            _result[--i] = (byte) ('0' + rem % 10);
+        position = cur + 1;
+    }
+
+    private static int digitsCount(final long value) {
+        long p = 10;
+        for (int i = 1; i < 19; i++) {
+            if (value < p)
+                return i;
+            p = 10 * p;
+        }
+        return 19;
+    }
+
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    /**
+     * Write a quoted string already encoded in UTF-8 into the JSON.
+     * String will be escaped the same way as in {@code writeString()},
+     * but multi-byte characters are copied without re-encoding.
+     *
+     * @param value UTF-8 bytes of the string to write
+     */
+    public final void writeUtf8String(final byte[] value) {
+        final int len = value.length;
+        // worst case: every byte is a control character escaped with 6 bytes
+        if (position + len * 6 + 2 >= buffer.length) {
+            enlargeOrFlush(position, len * 6 + 2);
+        }
+        final byte[] _result = buffer;
+        int cur = position;
+        _result[cur++] = QUOTE;
+        for (int i = 0; i < len; i++) {
+            cur = writeUtf8Byte(value[i], _result, cur);
+        }
+        _result[cur] = QUOTE;
+        position = cur + 1;
+    }
+
+    /**
+     * Write a quoted string already encoded in UTF-8 into the JSON.
+     * Same as {@code writeUtf8String(byte[])}, but the string is read
+     * from the given range of the buffer using absolute reads,
+     * so the buffer's position is not changed.
+     *
+     * @param value buffer with UTF-8 bytes of the string to write
+     * @param offset index of the first byte of the string in the buffer
+     * @param len number of bytes to write
+     */
+    public final void writeUtf8String(final ByteBuffer value, final int offset, final int len) {
+        if (position + len * 6 + 2 >= buffer.length) {
+            enlargeOrFlush(position, len * 6 + 2);
+        }
+        final byte[] _result = buffer;
+        int cur = position;
+        _result[cur++] = QUOTE;
+        for (int i = offset; i < offset + len; i++) {
+            cur = writeUtf8Byte(value.get(i), _result, cur);
+        }
+        _result[cur] = QUOTE;
+        position = cur + 1;
+    }
+
+    private static int writeUtf8Byte(final byte b, final byte[] _result, int cur) {
+        if (b < 0 || (b > 31 && b != '"' && b != '\\')) {
+            _result[cur++] = b;
+        } else if (b == '"') {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = QUOTE;
+        } else if (b == '\\') {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = ESCAPE;
+        } else if (b == 8) {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = 'b';
+        } else if (b == 9) {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = 't';
+        } else if (b == 10) {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = 'n';
+        } else if (b == 12) {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = 'f';
+        } else if (b == 13) {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = 'r';
+        } else {
+            _result[cur++] = ESCAPE;
+            _result[cur++] = 'u';
+            _result[cur++] = '0';
+            _result[cur++] = '0';
+            _result[cur++] = HEX_DIGITS[b >> 4];
+            _result[cur++] = HEX_DIGITS[b & 0xF];
+        }
+        return cur;
+    }
+
     /**
      * Write a quoted string into the JSON.
      * String will be appropriately escaped according to JSON escaping rules.
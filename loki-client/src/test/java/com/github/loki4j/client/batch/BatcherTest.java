@@ -3,6 +3,8 @@ package com.github.loki4j.client.batch;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class BatcherTest {
 
     private static LogRecord logRecord(long ts) {
@@ -132,4 +134,129 @@ public class BatcherTest {
         assertEquals("Batch is not ready", 0, buf.size());
     }
 
+    @Test
+    public void testGroupByStream() {
+        var cbb = new Batcher(6, 1000, 0);
+        var buf = new LogRecordBatch(6);
+        var s1 = LogRecordStream.create(1, "a", "1");
+        var s2 = LogRecordStream.create(2, "a", "2");
+        var s3 = LogRecordStream.create(3, "a", "3");
+
+        var r1 = logRecord(10, s2, "r1");
+        var r2 = logRecord(20, s1, "r2");
+        var r3 = logRecord(5, s2, "r3");
+        var r4 = logRecord(30, s3, "r4");
+        var r5 = logRecord(40, s1, "r5");
+        var r6 = logRecord(50, s2, "r6");
+        for (var r : new LogRecord[] {r1, r2, r3, r4, r5, r6})
+            cbb.add(r, buf);
+
+        assertEquals("Batch is ready", 6, buf.size());
+        assertEquals("Stream count", 3, buf.streamCount());
+        assertArrayEquals("Grouped by stream in arrival order",
+            new LogRecord[] {r1, r3, r6, r2, r5, r4}, buf.toArray());
+        buf.clear();
+
+        var sorting = new Batcher(6, 1000, 0, true);
+        for (var r : new LogRecord[] {r1, r2, r3, r4, r5, r6})
+            sorting.add(r, buf);
+        assertArrayEquals("Grouped by stream and sorted by time",
+            new LogRecord[] {r3, r1, r6, r2, r5, r4}, buf.toArray());
+        buf.clear();
+
+        // state of the previous batch does not leak to the next one
+        for (var r : new LogRecord[] {r4, r5, r6, r1, r2, r3})
+            sorting.add(r, buf);
+        assertArrayEquals("Next batch grouped and sorted",
+            new LogRecord[] {r4, r2, r5, r3, r1, r6}, buf.toArray());
+    }
+
+    @Test
+    public void testAdaptiveBatchSize() {
+        var now = new AtomicLong(1000L);
+        // target: 1 batch per second
+        var cbb = new Batcher(1000, 1_000_000, 60_000, false, 2000, 1.0, now::get);
+        var buf = new LogRecordBatch(1000);
+
+        // initially only max items and latency limits apply
+        for (int i = 0; i < 10; i++) {
+            cbb.add(logRecord(i), buf);
+            now.addAndGet(100);
+        }
+        assertEquals("Batch is not ready", 0, buf.size());
+        now.addAndGet(1000);
+        cbb.drain(now.get(), buf);
+        assertEquals("Batch is ready by latency", 10, buf.size());
+        assertEquals("Correct batch condition", BatchCondition.ADAPTIVE, buf.getCondition());
+        buf.clear();
+
+        // 10 records per 2 seconds observed, so 5 records per batch are expected
+        var added = 0;
+        while (buf.isEmpty()) {
+            cbb.add(logRecord(added++), buf);
+            now.addAndGet(100);
+        }
+        assertEquals("Batch size adapted to append rate", 5, buf.size());
+        assertEquals("Correct batch condition", BatchCondition.ADAPTIVE, buf.getCondition());
+        buf.clear();
+
+        // traffic grows 100x, batch size follows it
+        for (int round = 0; round < 20; round++) {
+            while (buf.isEmpty()) {
+                cbb.add(logRecord(added++), buf);
+                if (added % 10 == 0)
+                    now.incrementAndGet();
+            }
+            buf.clear();
+        }
+        for (int i = 0; i < 1000 && buf.isEmpty(); i++) {
+            cbb.add(logRecord(added++), buf);
+            if (added % 10 == 0)
+                now.incrementAndGet();
+        }
+        assertEquals("Batch size capped by max items", 1000, buf.size());
+        assertEquals("Correct batch condition", BatchCondition.MAX_ITEMS, buf.getCondition());
+    }
+
+    @Test
+    public void testAdaptiveLinger() {
+        var now = new AtomicLong(1000L);
+        // low target send rate, so batches are not cut by size
+        var cbb = new Batcher(1000, 1_000_000, 60_000, false, 500, 0.01, now::get);
+        var buf = new LogRecordBatch(1000);
+
+        cbb.add(logRecord(1), buf);
+        assertEquals("Drain delay is target latency", 500, cbb.drainDelayMs(now.get()));
+        now.addAndGet(499);
+        cbb.drain(now.get(), buf);
+        assertEquals("Batch is not ready", 0, buf.size());
+        now.addAndGet(1);
+        cbb.drain(now.get(), buf);
+        assertEquals("Batch is ready", 1, buf.size());
+        assertEquals("Correct batch condition", BatchCondition.ADAPTIVE, buf.getCondition());
+        buf.clear();
+
+        // round-trip time is subtracted from the target latency
+        cbb.reportRoundTrip(200);
+        cbb.add(logRecord(2), buf);
+        now.addAndGet(100);
+        cbb.add(logRecord(3), buf);
+        cbb.drain(now.get(), buf);
+        assertEquals("Batch is not ready", 0, buf.size());
+        assertEquals("Drain delay includes round trip", 200, cbb.drainDelayMs(now.get()));
+        now.addAndGet(200);
+        cbb.drain(now.get(), buf);
+        assertEquals("Batch is ready", 2, buf.size());
+        buf.clear();
+
+        // round trip is longer than target, records are sent as soon as possible
+        cbb.reportRoundTrip(2000);
+        cbb.reportRoundTrip(2000);
+        cbb.add(logRecord(4), buf);
+        cbb.drain(now.get(), buf);
+        cbb.add(logRecord(5), buf);
+        cbb.drain(now.get(), buf);
+        assertEquals("Batch is ready", 1, buf.size());
+    }
+
 }
@@ -5,6 +5,11 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.loki4j.client.util.ByteBufferFactory;
 
@@ -27,13 +32,13 @@ public class ByteBufferQueueTest {
         var queue = new ByteBufferQueue(10, new ByteBufferFactory(false));
         assertEquals("no elements added yet", 0, queue.getSizeBytes());
         
-        assertTrue("can add batch 0", queue.offer(0, 1, 4, bb -> write(bb, new byte[] {0, 1, 2, 3})));
+        assertTrue("can add batch 0", queue.offer(0, 0, 1, 4, bb -> write(bb, new byte[] {0, 1, 2, 3})));
         assertEquals("4 bytes added", 4, queue.getSizeBytes());
 
-        assertTrue("can add batch 1", queue.offer(1, 1, 4, bb -> write(bb, new byte[] {4, 5, 6, 7})));
+        assertTrue("can add batch 1", queue.offer(0, 1, 1, 4, bb -> write(bb, new byte[] {4, 5, 6, 7})));
         assertEquals("8 bytes added", 8, queue.getSizeBytes());
 
-        assertFalse("can not add batch 2", queue.offer(2, 1, 4, bb -> write(bb, new byte[] {8, 9, 10, 11})));
+        assertFalse("can not add batch 2", queue.offer(0, 2, 1, 4, bb -> write(bb, new byte[] {8, 9, 10, 11})));
         assertEquals("still 8 bytes added", 8, queue.getSizeBytes());
 
         var binBatch0 = queue.borrowBuffer();
@@ -43,7 +48,7 @@ public class ByteBufferQueueTest {
         assertArrayEquals("batch data", new byte[] {0, 1, 2, 3}, read(binBatch0));
         queue.returnBuffer(binBatch0);
 
-        assertTrue("can add batch 2", queue.offer(2, 1, 4, bb -> write(bb, new byte[] {8, 9, 10, 11})));
+        assertTrue("can add batch 2", queue.offer(0, 2, 1, 4, bb -> write(bb, new byte[] {8, 9, 10, 11})));
         assertEquals("again 8 bytes added", 8, queue.getSizeBytes());
 
         var binBatch1 = queue.borrowBuffer();
@@ -62,28 +67,155 @@ public class ByteBufferQueueTest {
     }
 
     @Test
-    public void testBatchReuse() {
+    public void testAwaitSpace() throws Exception {
         var queue = new ByteBufferQueue(10, new ByteBufferFactory(false));
+        assertTrue(queue.offer(0, 0, 1, 8, bb -> write(bb, new byte[8])));
+
+        var started = System.nanoTime();
+        queue.awaitSpace(2, Long.MAX_VALUE);
+        assertTrue("no wait if batch fits", System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+
+        var awaken = new CountDownLatch(1);
+        var producer = new Thread(() -> {
+            try {
+                queue.awaitSpace(4, Long.MAX_VALUE);
+                awaken.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertFalse("producer waits for space", awaken.await(100, TimeUnit.MILLISECONDS));
+
+        queue.returnBuffer(queue.borrowBuffer());
+        assertTrue("producer is woken up", awaken.await(5, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test
+    public void testBatchReuse() {
+        var queue = new ByteBufferQueue(10_000, new ByteBufferFactory(false));
         assertEquals("no buffer added yet", null, queue.borrowBuffer());
         assertEquals("no batches in pool yet", 0, queue.poolSize());
 
-        assertTrue("can add batch 0", queue.offer(0, 1, 4, bb -> write(bb, new byte[] {0, 1, 2, 3})));
-        assertEquals("4 bytes added", 4, queue.getSizeBytes());
+        assertTrue("can add batch 0", queue.offer(0, 0, 1, 4, bb -> write(bb, new byte[] {0, 1, 2, 3})));
+        assertEquals("buffer capacity counted", 4096, queue.getSizeBytes());
 
-        assertTrue("can add batch 1", queue.offer(1, 1, 4, bb -> write(bb, new byte[] {4, 5, 6, 7})));
-        assertEquals("8 bytes added", 8, queue.getSizeBytes());
+        assertTrue("can add batch 1", queue.offer(0, 1, 1, 4, bb -> write(bb, new byte[] {4, 5, 6, 7})));
+        assertEquals("buffer capacity counted", 8192, queue.getSizeBytes());
         assertEquals("no batches in pool yet", 0, queue.poolSize());
+        assertEquals("no hits", 0, queue.getPoolHitCount());
+        assertEquals("2 misses", 2, queue.getPoolMissCount());
 
         var binBatch0 = queue.borrowBuffer();
+        assertEquals("capacity is rounded up to min size class", 4096, binBatch0.data.capacity());
         queue.returnBuffer(binBatch0);
         assertEquals("1 batch in pool", 1, queue.poolSize());
+        assertEquals("pool size", 4096, queue.getPoolSizeBytes());
         var binBatch1 = queue.borrowBuffer();
         queue.returnBuffer(binBatch1);
-        assertEquals("still 1 batch in pool", 1, queue.poolSize());
+        assertEquals("2 batches in pool", 2, queue.poolSize());
+        assertEquals("pool size", 8192, queue.getPoolSizeBytes());
+
+        assertTrue("can add batch 2", queue.offer(0, 2, 1, 8, bb -> write(bb, new byte[] {0, 1, 2, 3, 4, 5, 6, 7})));
+        assertEquals("buffer capacity counted", 4096, queue.getSizeBytes());
+        assertEquals("batch from pool reused", 1, queue.poolSize());
+        assertEquals("1 hit", 1, queue.getPoolHitCount());
+        assertArrayEquals("batch data", new byte[] {0, 1, 2, 3, 4, 5, 6, 7}, read(queue.borrowBuffer()));
+    }
 
-        assertTrue("can add batch 2", queue.offer(2, 1, 8, bb -> write(bb, new byte[] {0, 1, 2, 3, 4, 5, 6, 7})));
-        assertEquals("8 bytes added", 8, queue.getSizeBytes());
-        assertEquals("batch from pool reused", 0, queue.poolSize());
+    @Test
+    public void testSizeClasses() {
+        var queue = new ByteBufferQueue(20_000, new ByteBufferFactory(true));
+        assertTrue(queue.offer(0, 0, 1, 5000, bb -> bb.flip()));
+        var batch = queue.borrowBuffer();
+        assertEquals("capacity is rounded up to power of two", 8192, batch.data.capacity());
+        assertTrue("direct buffer", batch.data.isDirect());
+        queue.returnBuffer(batch);
+
+        assertTrue(queue.offer(0, 1, 1, 3000, bb -> bb.flip()));
+        assertEquals("other size class is not reused", 2, queue.getPoolMissCount());
+        assertEquals("pool size", 8192, queue.getPoolSizeBytes());
+
+        assertTrue(queue.offer(0, 2, 1, 8192, bb -> bb.flip()));
+        assertEquals("same size class is reused", 1, queue.getPoolHitCount());
+        assertEquals("pool is empty", 0, queue.getPoolSizeBytes());
+
+        queue.returnBuffer(queue.borrowBuffer());
+        queue.returnBuffer(queue.borrowBuffer());
+        assertEquals("pool size", 4096 + 8192, queue.getPoolSizeBytes());
+
+        assertTrue(queue.offer(0, 3, 1, 16000, bb -> bb.flip()));
+        assertEquals("pooled buffers released to make room", 0, queue.getPoolSizeBytes());
+        var large = queue.borrowBuffer();
+        assertEquals("capacity", 16384, large.data.capacity());
+        queue.returnBuffer(large);
+        assertEquals("pool size", 16384, queue.getPoolSizeBytes());
+        assertEquals("batches in pool", 1, queue.poolSize());
+
+        assertTrue(queue.offer(0, 4, 1, 16000, bb -> bb.flip()));
+        assertTrue("rounded buffer does not fit", queue.offer(0, 5, 1, 3000, bb -> bb.flip()));
+        assertEquals("queue size", 16384 + 3000, queue.getSizeBytes());
+        assertFalse("queue is full", queue.offer(0, 6, 1, 1000, bb -> bb.flip()));
+        queue.borrowBuffer();
+        assertEquals("buffer of exact size", 3000, queue.borrowBuffer().data.capacity());
     }
-    
+
+    @Test
+    public void testConcurrentOfferAndBorrow() throws Exception {
+        var maxSizeBytes = 100_000L;
+        var queue = new ByteBufferQueue(maxSizeBytes, new ByteBufferFactory(false));
+        var producers = 4;
+        var consumers = 2;
+        var batchesPerProducer = 5_000;
+        var maxObserved = new AtomicLong(0L);
+        var offered = new AtomicLong(0L);
+        var borrowed = new AtomicLong(0L);
+        var producersDone = new CountDownLatch(producers);
+        var pool = Executors.newFixedThreadPool(producers + consumers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                var partition = p;
+                pool.execute(() -> {
+                    var rnd = new Random(partition);
+                    var sent = 0;
+                    while (sent < batchesPerProducer) {
+                        var claim = 1 + rnd.nextInt(20_000);
+                        if (queue.offer(partition, sent, 1, claim, bb -> bb.flip())) {
+                            offered.addAndGet(claim);
+                            sent++;
+                        } else {
+                            Thread.yield();
+                        }
+                        maxObserved.accumulateAndGet(queue.getSizeBytes(), Math::max);
+                    }
+                    producersDone.countDown();
+                });
+            }
+            for (int c = 0; c < consumers; c++) {
+                pool.execute(() -> {
+                    while (producersDone.getCount() > 0 || queue.getSizeBytes() > 0) {
+                        var batch = queue.borrowBuffer();
+                        if (batch == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        borrowed.addAndGet(batch.sizeBytes);
+                        maxObserved.accumulateAndGet(queue.getSizeBytes(), Math::max);
+                        queue.returnBuffer(batch);
+                    }
+                });
+            }
+            assertTrue("all batches offered", producersDone.await(30, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+            assertTrue("consumers completed", pool.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        assertTrue("max size is never exceeded: " + maxObserved.get(), maxObserved.get() <= maxSizeBytes);
+        assertEquals("all bytes borrowed", offered.get(), borrowed.get());
+        assertEquals("queue is empty", 0, queue.getSizeBytes());
+        assertTrue("pool is bounded", queue.getPoolSizeBytes() <= maxSizeBytes);
+    }
+
 }
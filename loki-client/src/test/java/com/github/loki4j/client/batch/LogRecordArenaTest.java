@@ -0,0 +1,71 @@
+package com.github.loki4j.client.batch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+public class LogRecordArenaTest {
+
+    private LogRecordStream stream = LogRecordStream.create(0, "level", "INFO");
+
+    private static byte[] message(int len, char c) {
+        var s = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            s.append(c);
+        return s.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCreate() {
+        var arena = new LogRecordArena(1024, 256);
+        var r = arena.create(100L, 5, stream, "Привет".getBytes(StandardCharsets.UTF_8));
+        assertNotNull("record created", r);
+        assertNotNull("stored off-heap", r.segment);
+        assertNull("no heap message", r.message);
+        assertNull("no heap bytes", r.messageUtf8);
+        assertEquals("ts", 100L, r.timestampMs);
+        assertEquals("nanos", 5, r.nanos);
+        assertEquals("size", 12, r.messageUtf8SizeBytes);
+        assertEquals("message", "Привет", r.messageString());
+        assertEquals("arena size", 12, arena.sizeBytes());
+
+        arena.release(r);
+        assertEquals("arena size after release", 0, arena.sizeBytes());
+        arena.release(LogRecord.create(100L, 0, stream, "heap"));
+        assertEquals("heap records are ignored", 0, arena.sizeBytes());
+    }
+
+    @Test
+    public void testFullAndReuse() {
+        var arena = new LogRecordArena(512, 256);
+        assertEquals("capacity", 512, arena.capacityBytes());
+        assertNull("larger than segment", arena.create(0L, 0, stream, message(257, 'x')));
+
+        var r1 = arena.create(0L, 0, stream, message(200, 'a'));
+        var r2 = arena.create(0L, 0, stream, message(200, 'b'));
+        var r3 = arena.create(0L, 0, stream, message(50, 'c'));
+        assertNotNull(r1);
+        assertNotNull(r2);
+        assertNotNull(r3);
+        assertNotSame("second segment", r1.segment, r2.segment);
+        assertSame("fits into second segment", r2.segment, r3.segment);
+        assertNull("arena is full", arena.create(0L, 0, stream, message(100, 'd')));
+
+        // the first segment is not current, so it is reused once released
+        arena.release(r1);
+        var r4 = arena.create(0L, 0, stream, message(100, 'd'));
+        assertSame("first segment reused", r1.segment, r4.segment);
+        assertEquals("reused from the beginning", 0, r4.messageOffset);
+        assertEquals("message", new String(message(100, 'd'), StandardCharsets.UTF_8), r4.messageString());
+        assertEquals("other messages are intact", new String(message(50, 'c'), StandardCharsets.UTF_8), r3.messageString());
+
+        var batch = new LogRecordBatch(new LogRecord[] {r2, r3, r4});
+        arena.release(batch);
+        assertEquals("all released", 0, arena.sizeBytes());
+        assertNotNull("space is available again", arena.create(0L, 0, stream, message(256, 'e')));
+        assertNotNull("space is available again", arena.create(0L, 0, stream, message(256, 'f')));
+    }
+
+}
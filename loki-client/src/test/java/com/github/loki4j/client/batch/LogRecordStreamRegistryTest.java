@@ -0,0 +1,140 @@
+package com.github.loki4j.client.batch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class LogRecordStreamRegistryTest {
+
+    @Test
+    public void testRegister() {
+        var registry = new LogRecordStreamRegistry();
+        assertNull("no stream initially", registry.get("level=INFO"));
+
+        var s1 = registry.register("level=INFO", new String[] {"level", "INFO"});
+        var s2 = registry.register("level=WARN", new String[] {"level", "WARN"});
+        assertNotEquals("different ids", s1.id, s2.id);
+        assertSame("same stream for same key", s1, registry.get("level=INFO"));
+        assertSame("existing stream is not replaced", s1, registry.register("level=INFO", new String[] {"level", "X"}));
+        assertArrayEquals("labels", new String[] {"level", "INFO"}, s1.labels);
+
+        assertEquals("size", 2, registry.size());
+        assertEquals("created", 2, registry.createdCount());
+    }
+
+    @Test
+    public void testRegisterByHash() {
+        var registry = new LogRecordStreamRegistry();
+        var labels1 = new String[] {"level", "INFO"};
+        var labels2 = new String[] {"level", "WARN"};
+        // same hash for different labels must not be confused
+        var s1 = registry.register(42L, labels1);
+        var s2 = registry.register(42L, labels2);
+        assertNotEquals("different streams for hash collision", s1.id, s2.id);
+        assertSame("same stream for same labels", s1, registry.register(42L, labels1.clone()));
+
+        assertSame("found by matcher", s2, registry.get(42L, "WARN", (s, v) -> s.labels[1].equals(v)));
+        assertNull("not found by other hash", registry.get(43L, "WARN", (s, v) -> s.labels[1].equals(v)));
+        assertNull("string keys are separate", registry.get("42"));
+
+        for (int i = 0; i < 1000; i++)
+            registry.register(i, new String[] {"k", String.valueOf(i)});
+        for (int i = 0; i < 1000; i++) {
+            var expected = new String[] {"k", String.valueOf(i)};
+            assertNotNull("found after resize", registry.get(i, expected, (s, l) -> Arrays.equals(s.labels, l)));
+        }
+        assertEquals("size", 1002, registry.size());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        var registry = new LogRecordStreamRegistry(3, true);
+        var a = registry.register("a", new String[] {"k", "a"});
+        registry.register("b", new String[] {"k", "b"});
+        registry.register("c", new String[] {"k", "c"});
+        assertEquals("size", 3, registry.size());
+
+        // all streams are used, the hand clears their flags and evicts the first one
+        registry.register("d", new String[] {"k", "d"});
+        assertEquals("size is limited", 3, registry.size());
+        assertEquals("evicted", 1, registry.evictedCount());
+        assertNull("oldest stream evicted", registry.get("a"));
+
+        // "b" is used since the last sweep, so "c" goes next
+        assertNotNull(registry.get("b"));
+        registry.register("e", new String[] {"k", "e"});
+        assertNotNull("recently used stream kept", registry.get("b"));
+        assertNull("not used stream evicted", registry.get("c"));
+        assertEquals("evicted", 2, registry.evictedCount());
+
+        var a2 = registry.register("a", new String[] {"k", "a"});
+        assertNotEquals("re-registered stream gets new id", a.id, a2.id);
+        assertEquals("size is limited", 3, registry.size());
+        assertEquals("created", 6, registry.createdCount());
+        assertEquals("no overflow", 0, registry.overflowCount());
+    }
+
+    @Test
+    public void testRejectOverLimit() {
+        var registry = new LogRecordStreamRegistry(2, false);
+        assertNotNull(registry.register("a", new String[] {"k", "a"}));
+        assertNotNull(registry.register(1L, new String[] {"k", "b"}));
+        assertNull("string key rejected", registry.register("c", new String[] {"k", "c"}));
+        assertNull("hash key rejected", registry.register(2L, new String[] {"k", "c"}));
+        assertEquals("overflow", 2, registry.overflowCount());
+        assertNotNull("existing stream is found", registry.register("a", new String[] {"k", "a"}));
+
+        assertNotNull("forced registration", registry.register("c", new String[] {"k", "c"}, true));
+        assertEquals("size", 3, registry.size());
+        assertEquals("no evictions", 0, registry.evictedCount());
+    }
+
+    @Test
+    public void testConcurrentRegister() throws Exception {
+        var threads = 8;
+        var keys = 1000;
+        var registry = new LogRecordStreamRegistry();
+        var seen = ConcurrentHashMap.<LogRecordStream>newKeySet();
+        var pool = Executors.newFixedThreadPool(threads);
+        var start = new CountDownLatch(1);
+        var done = new CountDownLatch(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                pool.execute(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < keys; i++) {
+                            var key = "k=" + i;
+                            var stream = registry.get(key);
+                            if (stream == null)
+                                stream = registry.register(key, new String[] {"k", String.valueOf(i)});
+                            seen.add(stream);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            }
+            start.countDown();
+            assertTrue("all threads completed", done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals("one stream per key", keys, registry.size());
+        assertEquals("no extra streams created", keys, registry.createdCount());
+        var ids = new HashSet<Long>();
+        for (var s : seen)
+            ids.add(s.id);
+        assertEquals("unique ids", keys, ids.size());
+    }
+
+}
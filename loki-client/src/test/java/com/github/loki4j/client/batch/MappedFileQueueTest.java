@@ -0,0 +1,251 @@
+package com.github.loki4j.client.batch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+
+public class MappedFileQueueTest {
+
+    private Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("loki4j-queue");
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        try (var files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static byte[] read(BinaryBatch bb) {
+        var r = new byte[bb.data.remaining()];
+        bb.data.duplicate().get(r);
+        return r;
+    }
+
+    private static byte[] bytes(int len, int seed) {
+        var r = new byte[len];
+        for (int i = 0; i < len; i++)
+            r[i] = (byte) (seed + i);
+        return r;
+    }
+
+    private static boolean offer(SendQueue queue, long batchId, byte[] data) {
+        return queue.offer((int) batchId, batchId, (int) batchId + 1, data.length, bb -> {
+            bb.put(data);
+            bb.flip();
+        });
+    }
+
+    /**
+     * Copies the file as it is at the moment, as if the process crashed
+     */
+    private Path crash(Path file) throws IOException {
+        var copy = dir.resolve("crashed-" + System.nanoTime());
+        Files.copy(file, copy, StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    @Test
+    public void testOfferBorrowReturn() throws IOException {
+        var queue = new MappedFileQueue(dir.resolve("q"), 1024, 1);
+        try {
+            assertNull("empty queue", queue.borrowBuffer());
+            assertEquals("no recovered items", 0, queue.getRecoveredItems());
+
+            assertTrue("batch 0 added", offer(queue, 0, bytes(100, 0)));
+            assertTrue("batch 1 added", offer(queue, 1, bytes(200, 1)));
+            assertEquals("size includes frame headers", 136 + 232, queue.getSizeBytes());
+
+            var b0 = queue.borrowBuffer();
+            assertEquals("batch id", 0, b0.batchId);
+            assertEquals("batch items", 1, b0.sizeItems);
+            assertEquals("batch bytes", 100, b0.sizeBytes);
+            assertArrayEquals("batch data", bytes(100, 0), read(b0));
+
+            assertFalse("queue is full", offer(queue, 2, bytes(700, 2)));
+            queue.returnBuffer(b0);
+            assertEquals("space released", 232, queue.getSizeBytes());
+            assertTrue("batch 2 added", offer(queue, 2, bytes(600, 2)));
+
+            var b1 = queue.borrowBuffer();
+            assertArrayEquals("batch data", bytes(200, 1), read(b1));
+            var b2 = queue.borrowBuffer();
+            assertArrayEquals("batch data", bytes(600, 2), read(b2));
+            assertNull("no more batches", queue.borrowBuffer());
+
+            // out-of-order return does not release the older batch
+            queue.returnBuffer(b2);
+            assertTrue("older batch still holds space", queue.getSizeBytes() > 0);
+            queue.returnBuffer(b1);
+            assertEquals("queue is empty", 0, queue.getSizeBytes());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws IOException {
+        var file = dir.resolve("q");
+        var queue = new MappedFileQueue(file, 4096, 2);
+        Path crashed;
+        try {
+            for (int i = 0; i < 5; i++)
+                assertTrue(offer(queue, i, bytes(300, i)));
+            // batch 0 is sent, batch 1 is being sent, the rest are waiting
+            queue.returnBuffer(queue.borrowBuffer());
+            queue.borrowBuffer();
+            crashed = crash(file);
+        } finally {
+            queue.close();
+        }
+
+        var recovered = new MappedFileQueue(crashed, 1024, 1);
+        try {
+            assertEquals("recovered items", 2 + 3 + 4 + 5, recovered.getRecoveredItems());
+            for (int i = 1; i < 5; i++) {
+                var b = recovered.borrowBuffer();
+                assertEquals("batch id", i, b.batchId);
+                assertEquals("partition is re-distributed", i % 1, b.partition);
+                assertArrayEquals("batch data", bytes(300, i), read(b));
+                recovered.returnBuffer(b);
+            }
+            assertNull("no more batches", recovered.borrowBuffer());
+            assertEquals("capacity of the existing file is kept", 64 + 4096, Files.size(crashed));
+        } finally {
+            recovered.close();
+        }
+
+        var reopened = new MappedFileQueue(crashed, 4096, 1);
+        try {
+            assertEquals("all batches are sent before", 0, reopened.getRecoveredItems());
+            assertNull("nothing to replay", reopened.borrowBuffer());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testRecoverAfterWrapAround() throws IOException {
+        var file = dir.resolve("q");
+        var queue = new MappedFileQueue(file, 2048, 1);
+        Path crashed;
+        try {
+            // make several laps over the file, so it is full of stale frames
+            for (int i = 0; i < 50; i++) {
+                assertTrue("batch " + i, offer(queue, i, bytes(100 + (i % 10) * 20, i)));
+                queue.returnBuffer(queue.borrowBuffer());
+            }
+            for (int i = 50; i < 54; i++)
+                assertTrue("batch " + i, offer(queue, i, bytes(100 + (i % 10) * 20, i)));
+            crashed = crash(file);
+        } finally {
+            queue.close();
+        }
+
+        var recovered = new MappedFileQueue(crashed, 2048, 1);
+        try {
+            for (int i = 50; i < 54; i++) {
+                var b = recovered.borrowBuffer();
+                assertNotNull("batch " + i, b);
+                assertEquals("batch id", i, b.batchId);
+                assertArrayEquals("batch data", bytes(100 + (i % 10) * 20, i), read(b));
+            }
+            assertNull("stale frames are not recovered", recovered.borrowBuffer());
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testCorruptedFrame() throws IOException {
+        var file = dir.resolve("q");
+        var queue = new MappedFileQueue(file, 4096, 1);
+        Path crashed;
+        try {
+            for (int i = 0; i < 3; i++)
+                assertTrue(offer(queue, i, bytes(100, i)));
+            crashed = crash(file);
+        } finally {
+            queue.close();
+        }
+        // flip a byte in the content of the last frame
+        try (var raf = new RandomAccessFile(crashed.toFile(), "rw")) {
+            var pos = 64 + 2 * 136 + 32 + 50;
+            raf.seek(pos);
+            var b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xFF);
+        }
+
+        var recovered = new MappedFileQueue(crashed, 4096, 1);
+        try {
+            assertEquals("valid frames recovered", 1 + 2, recovered.getRecoveredItems());
+            assertEquals(0, recovered.borrowBuffer().batchId);
+            assertEquals(1, recovered.borrowBuffer().batchId);
+            assertNull("corrupted frame is dropped", recovered.borrowBuffer());
+            assertTrue("new batches can be added", offer(recovered, 3, bytes(100, 3)));
+            assertEquals(3, recovered.borrowBuffer().batchId);
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testReturnAfterClose() throws IOException {
+        var file = dir.resolve("q");
+        var queue = new MappedFileQueue(file, 4096, 1);
+        assertTrue(offer(queue, 0, bytes(100, 0)));
+        var b = queue.borrowBuffer();
+        queue.close();
+        queue.returnBuffer(b);
+        assertFalse("closed queue does not accept batches", offer(queue, 1, bytes(100, 1)));
+
+        var reopened = new MappedFileQueue(file, 4096, 1);
+        try {
+            assertEquals("batch is kept", 1, reopened.getRecoveredItems());
+            assertArrayEquals("batch data", bytes(100, 0), read(reopened.borrowBuffer()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testInvalidFileIsRecreated() throws IOException {
+        var file = dir.resolve("q");
+        Files.write(file, bytes(1000, 42));
+        var queue = new MappedFileQueue(file, 4096, 1);
+        try {
+            assertEquals("nothing recovered", 0, queue.getRecoveredItems());
+            assertTrue(offer(queue, 0, bytes(100, 0)));
+            assertArrayEquals("batch data", bytes(100, 0), read(queue.borrowBuffer()));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFileIsLocked() throws IOException {
+        var file = dir.resolve("q");
+        var queue = new MappedFileQueue(file, 4096, 1);
+        try {
+            new MappedFileQueue(file, 4096, 1);
+        } finally {
+            queue.close();
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.github.loki4j.client.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+public class ByteBufferEntityTest {
+
+    private static ByteBuffer directBuffer(byte[] bs) {
+        var buf = ByteBuffer.allocateDirect(bs.length + 4);
+        buf.put(new byte[] {9, 9});
+        buf.put(bs);
+        buf.flip();
+        buf.position(2);
+        return buf;
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        var data = new byte[] {0, 1, 2, 3, 4, 5, 6, 7};
+        var buf = directBuffer(data);
+        var entity = new ByteBufferEntity(buf);
+        assertEquals("content length", 8, entity.getContentLength());
+
+        var out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertArrayEquals("content written", data, out.toByteArray());
+        assertEquals("position not changed", 2, buf.position());
+
+        out.reset();
+        entity.writeTo(out);
+        assertArrayEquals("entity is repeatable", data, out.toByteArray());
+    }
+
+    @Test
+    public void testGetContent() throws Exception {
+        var data = new byte[] {0, 1, 2, 3, 4, 5, 6, (byte) 0xFF};
+        var buf = directBuffer(data);
+        var entity = new ByteBufferEntity(buf);
+
+        try (var in = entity.getContent()) {
+            assertEquals("first byte", 0, in.read());
+            var rest = new byte[10];
+            assertEquals("bytes read", 7, in.read(rest, 0, 10));
+            assertEquals("unsigned byte", 0xFF, rest[6] & 0xFF);
+            assertEquals("end of stream", -1, in.read());
+        }
+        assertEquals("position not changed", 2, buf.position());
+    }
+
+}
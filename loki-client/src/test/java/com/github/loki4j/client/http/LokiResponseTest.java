@@ -0,0 +1,21 @@
+package com.github.loki4j.client.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LokiResponseTest {
+
+    @Test
+    public void testParseRetryAfter() {
+        var nowMs = 1445412480000L; // Wed, 21 Oct 2015 07:28:00 GMT
+        assertEquals("no header", -1L, LokiResponse.parseRetryAfterMs(null, nowMs));
+        assertEquals("seconds", 120_000L, LokiResponse.parseRetryAfterMs("120", nowMs));
+        assertEquals("spaces", 5_000L, LokiResponse.parseRetryAfterMs(" 5 ", nowMs));
+        assertEquals("negative", -1L, LokiResponse.parseRetryAfterMs("-5", nowMs));
+        assertEquals("date", 30_000L, LokiResponse.parseRetryAfterMs("Wed, 21 Oct 2015 07:28:30 GMT", nowMs));
+        assertEquals("date in the past", 0L, LokiResponse.parseRetryAfterMs("Wed, 21 Oct 2015 07:00:00 GMT", nowMs));
+        assertEquals("invalid", -1L, LokiResponse.parseRetryAfterMs("soon", nowMs));
+    }
+
+}
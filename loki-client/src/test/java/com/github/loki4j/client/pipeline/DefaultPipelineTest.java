@@ -0,0 +1,127 @@
+package com.github.loki4j.client.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.batch.LogRecordStream;
+import com.github.loki4j.client.batch.LogRecordStreamRegistry;
+import com.github.loki4j.client.http.HttpConfig;
+import com.github.loki4j.client.http.Loki4jHttpClient;
+import com.github.loki4j.client.http.LokiResponse;
+import com.github.loki4j.client.util.Loki4jLogger;
+import com.github.loki4j.client.writer.Writer;
+
+public class DefaultPipelineTest {
+
+    private static final LogRecordStream stream = LogRecordStream.create(0, "level", "INFO");
+
+    private static final Loki4jLogger silentLogger = new Loki4jLogger() {
+        public void trace(String msg, Object... args) { }
+        public void info(String msg, Object... args) { }
+        public void warn(String msg, Object... args) { }
+        public void error(String msg, Object... args) { }
+        public void error(Throwable ex, String msg, Object... args) { }
+    };
+
+    private static DefaultPipeline pipeline(long bufferMaxBytes) {
+        return new DefaultPipeline(config(bufferMaxBytes).build());
+    }
+
+    private static PipelineConfig.Builder config(long bufferMaxBytes) {
+        return PipelineConfig.builder()
+            .setBatchMaxBytes(1000)
+            .setBufferMaxBytes(bufferMaxBytes)
+            .setSendQueueMaxBytes(10_000)
+            .setUseDirectBuffers(false)
+            .setHttpClientFactory(cfg -> new Loki4jHttpClient() {
+                public HttpConfig getConfig() { return cfg; }
+                public LokiResponse send(ByteBuffer batch) { return new LokiResponse(204, ""); }
+                public void close() { }
+            })
+            .setInternalLoggingFactory(source -> silentLogger);
+    }
+
+    private static String message(int len) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            sb.append('a');
+        return sb.toString();
+    }
+
+    @Test
+    public void testIntakeBytesLimit() {
+        // the pipeline is not started, so nothing leaves the intake
+        var pipeline = pipeline(100);
+        for (int i = 0; i < 3; i++)
+            assertTrue("accepted " + i, pipeline.append(100L, 0, () -> stream, () -> message(30)));
+        assertEquals("intake bytes", 90, pipeline.getIntakeSizeBytes());
+        assertEquals("intake items", 3, pipeline.getIntakeSizeItems());
+
+        assertFalse("message exceeds the limit", pipeline.append(100L, 0, () -> stream, () -> message(30)));
+        assertTrue("message fits the limit", pipeline.append(100L, 0, () -> stream, () -> message(10)));
+        assertEquals("intake bytes", 100, pipeline.getIntakeSizeBytes());
+        assertEquals("fill ratio", 1.0, pipeline.getFillRatio(), 1e-9);
+
+        assertFalse("rejected before message is rendered", pipeline.append(100L, 0,
+            () -> { throw new IllegalStateException("stream"); },
+            () -> { throw new IllegalStateException("message"); }));
+        assertEquals("intake items", 4, pipeline.getIntakeSizeItems());
+    }
+
+    @Test
+    public void testReRegisteredStreamKeepsEncoder() {
+        var registry = new LogRecordStreamRegistry(1, true);
+        var labelsA = new String[] {"level", "INFO", "app", "my-app"};
+        var labelsB = new String[] {"level", "WARN", "app", "my-app"};
+        var streamA = registry.register("a", labelsA);
+        var streamB = registry.register("b", labelsB);
+        assertNotEquals("streams are routed to different encoders",
+            DefaultPipeline.encoderIndex(streamA, 2), DefaultPipeline.encoderIndex(streamB, 2));
+
+        // stream A was evicted to register stream B
+        var streamA2 = registry.register("a", labelsA);
+        assertEquals("two streams evicted", 2, registry.evictedCount());
+        assertNotEquals("re-registered stream gets new id", streamA.id, streamA2.id);
+        assertEquals("re-registered stream is routed to the same encoder",
+            DefaultPipeline.encoderIndex(streamA, 2), DefaultPipeline.encoderIndex(streamA2, 2));
+    }
+
+    @Test
+    public void testLargeMessageToEmptyIntake() {
+        var pipeline = pipeline(100);
+        assertTrue("empty intake accepts any valid message",
+            pipeline.appendUtf8(100L, 0, () -> stream, () -> new byte[500]));
+        assertEquals("intake bytes", 500, pipeline.getIntakeSizeBytes());
+        assertFalse("intake is full", pipeline.append(100L, 0, () -> stream, () -> message(1)));
+    }
+
+    @Test
+    public void testSerializationFailureReleasesIntake() {
+        var failingWriter = new Writer() {
+            public void serializeBatch(LogRecordBatch batch) { throw new IllegalStateException("serialize"); }
+            public int size() { return 0; }
+            public void toByteBuffer(ByteBuffer buffer) { }
+            public byte[] toByteArray() { return new byte[0]; }
+            public void reset() { }
+        };
+        var pipeline = new DefaultPipeline(config(1000)
+            .setBatchMaxItems(1)
+            .setWriter(new PipelineConfig.WriterFactory((capacity, bf) -> failingWriter, "application/json"))
+            .build());
+        pipeline.start();
+        try {
+            for (int i = 0; i < 5; i++)
+                assertTrue("accepted " + i, pipeline.append(100L, 0, () -> stream, () -> message(30)));
+            pipeline.waitSendQueueIsEmpty(5_000L);
+            assertEquals("intake bytes", 0, pipeline.getIntakeSizeBytes());
+            assertEquals("intake items", 0, pipeline.getIntakeSizeItems());
+        } finally {
+            pipeline.stop();
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.github.loki4j.client.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletionException;
+
+import com.github.loki4j.client.http.LokiResponse;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void testBudgetExhausted() {
+        var budget = new RetryBudget(0.5, 3.0, 0L);
+        for (int i = 0; i < 3; i++)
+            assertTrue("initial balance " + i, budget.tryWithdraw(0L));
+        assertFalse("budget exhausted", budget.tryWithdraw(0L));
+
+        budget.deposit();
+        assertFalse("half of a retry", budget.tryWithdraw(0L));
+        budget.deposit();
+        assertTrue("two batches sent", budget.tryWithdraw(0L));
+        assertFalse("budget exhausted", budget.tryWithdraw(0L));
+    }
+
+    @Test
+    public void testBalanceIsCapped() {
+        var budget = new RetryBudget(1.0, 2.0, 0L);
+        for (int i = 0; i < 100; i++)
+            budget.deposit();
+        assertEquals("max balance", 2.0, budget.balance(), 1e-9);
+
+        assertTrue(budget.tryWithdraw(0L));
+        assertTrue(budget.tryWithdraw(0L));
+        assertFalse("budget exhausted", budget.tryWithdraw(0L));
+        assertFalse("reserve is not refilled yet", budget.tryWithdraw(500L));
+        assertTrue("reserve is refilled", budget.tryWithdraw(1000L));
+        assertTrue("reserve is capped too", budget.tryWithdraw(100_000L));
+        assertTrue(budget.tryWithdraw(100_000L));
+        assertFalse("budget exhausted", budget.tryWithdraw(100_000L));
+    }
+
+    @Test
+    public void testBackoff() {
+        assertEquals("first retry", 500L, DefaultPipeline.retryBackoffMs(0, 500L, 60_000L, 0.0));
+        assertEquals("jitter", 250L, DefaultPipeline.retryBackoffMs(0, 500L, 60_000L, 1.0));
+        assertEquals("exponential growth", 4000L, DefaultPipeline.retryBackoffMs(3, 500L, 60_000L, 0.0));
+        assertEquals("max backoff", 60_000L, DefaultPipeline.retryBackoffMs(10, 500L, 60_000L, 0.0));
+        assertEquals("no overflow", 60_000L, DefaultPipeline.retryBackoffMs(Integer.MAX_VALUE, 500L, 60_000L, 0.0));
+        for (int i = 0; i < 100; i++) {
+            var delay = DefaultPipeline.retryBackoffMs(2, 500L, 60_000L, i / 100.0);
+            assertTrue("delay within upper half: " + delay, delay > 1000L && delay <= 2000L);
+        }
+    }
+
+    @Test
+    public void testRetryableErrors() {
+        assertTrue("too many requests", DefaultPipeline.isRetryable(new LokiResponse(429, ""), null));
+        assertTrue("server error", DefaultPipeline.isRetryable(new LokiResponse(503, ""), null));
+        assertFalse("success", DefaultPipeline.isRetryable(new LokiResponse(204, ""), null));
+        assertFalse("invalid batch", DefaultPipeline.isRetryable(new LokiResponse(400, ""), null));
+
+        assertTrue("connection refused", DefaultPipeline.isRetryable(null,
+            new CompletionException(new IOException(new ConnectException("refused")))));
+        assertFalse("batch might be delivered", DefaultPipeline.isRetryable(null,
+            new SocketTimeoutException("read timed out")));
+    }
+
+}
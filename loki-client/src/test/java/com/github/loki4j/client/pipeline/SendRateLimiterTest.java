@@ -0,0 +1,52 @@
+package com.github.loki4j.client.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SendRateLimiterTest {
+
+    private static final long SEC = 1_000_000_000L;
+
+    @Test
+    public void testTokenBucket() {
+        var limiter = new SendRateLimiter(1000, 0L);
+        assertEquals("burst is allowed", 0L, limiter.acquire(600, 0L));
+        assertEquals("bucket is not empty yet", 0L, limiter.acquire(600, 0L));
+        assertEquals("wait until the debt is paid off", SEC / 5, limiter.acquire(100, 0L));
+        assertEquals("debt is paid off in time", 0L, limiter.acquire(100, SEC * 3 / 10));
+        assertEquals("bucket is refilled", 0L, limiter.acquire(1500, SEC * 100));
+        assertEquals("burst is capped", SEC / 2, limiter.acquire(1, SEC * 100));
+    }
+
+    @Test
+    public void testThrottled() {
+        var limiter = new SendRateLimiter(1000, 0L);
+        limiter.throttled(-1L, 0L);
+        assertEquals("rate is halved", 500.0, limiter.rate(), 1e-9);
+        assertEquals("no burst after 429", 0L, limiter.acquire(250, 0L));
+        assertEquals("reduced rate", SEC / 2, limiter.acquire(250, 0L));
+
+        for (int i = 0; i < 100; i++)
+            limiter.throttled(-1L, 0L);
+        assertEquals("min rate", 1000.0 / 64, limiter.rate(), 1e-9);
+
+        for (int i = 0; i < 10; i++)
+            limiter.accepted();
+        assertEquals("rate is restored gradually", 1000.0 / 64 + 500.0, limiter.rate(), 1e-9);
+        for (int i = 0; i < 100; i++)
+            limiter.accepted();
+        assertEquals("max rate", 1000.0, limiter.rate(), 1e-9);
+    }
+
+    @Test
+    public void testRetryAfter() {
+        var limiter = new SendRateLimiter(1_000_000, 0L);
+        limiter.throttled(3000L, SEC);
+        assertEquals("wait for Retry-After", 2 * SEC, limiter.acquire(1, 2 * SEC));
+        limiter.throttled(1000L, 2 * SEC);
+        assertEquals("shorter delay does not cancel the longer one", SEC, limiter.acquire(1, 3 * SEC));
+        assertEquals("sends are resumed", 0L, limiter.acquire(1, 4 * SEC));
+    }
+
+}
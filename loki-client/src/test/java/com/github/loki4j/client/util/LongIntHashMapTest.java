@@ -0,0 +1,50 @@
+package com.github.loki4j.client.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void testPutGet() {
+        var map = new LongIntHashMap(100);
+        assertEquals("empty", -1, map.get(0L));
+
+        for (int i = 0; i < 100; i++)
+            map.put(i * 1024L, i);
+        assertEquals("size", 100, map.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals("value " + i, i, map.get(i * 1024L));
+        assertEquals("missing key", -1, map.get(1L));
+
+        map.put(0L, 42);
+        assertEquals("value replaced", 42, map.get(0L));
+        assertEquals("size not changed", 100, map.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFull() {
+        var map = new LongIntHashMap(2);
+        map.put(1L, 1);
+        map.put(2L, 2);
+        map.put(3L, 3);
+    }
+
+    @Test
+    public void testClear() {
+        var map = new LongIntHashMap(10);
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals("cleared", -1, map.get(round * 10L + i - 10));
+                map.put(round * 10L + i, i);
+            }
+            assertEquals("size", 10, map.size());
+            assertEquals("value", 5, map.get(round * 10L + 5));
+            map.clear();
+            assertEquals("empty after clear", 0, map.size());
+            assertEquals("no value after clear", -1, map.get(round * 10L + 5));
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.github.loki4j.client.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void testCapacity() {
+        assertEquals("capacity 1", 1, new MpscRingBuffer<Integer>(1).capacity());
+        assertEquals("capacity 8", 8, new MpscRingBuffer<Integer>(8).capacity());
+        assertEquals("rounded capacity", 16, new MpscRingBuffer<Integer>(9).capacity());
+        assertEquals("rounded capacity", 1024, new MpscRingBuffer<Integer>(1000).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroCapacity() {
+        new MpscRingBuffer<Integer>(0);
+    }
+
+    @Test
+    public void testOfferPoll() {
+        var ring = new MpscRingBuffer<Integer>(4);
+        assertTrue("initially empty", ring.isEmpty());
+        assertNull("nothing to peek", ring.peek());
+        assertNull("nothing to poll", ring.poll());
+
+        for (int i = 0; i < 4; i++)
+            assertTrue("can add " + i, ring.offer(i));
+        assertFalse("can not add to full buffer", ring.offer(4));
+        assertEquals("buffer is full", 4, ring.size());
+
+        assertEquals("peek head", Integer.valueOf(0), ring.peek());
+        assertEquals("peek does not remove", Integer.valueOf(0), ring.peek());
+        assertEquals("poll head", Integer.valueOf(0), ring.poll());
+        assertEquals("size decreased", 3, ring.size());
+
+        assertTrue("can add after poll", ring.offer(4));
+        for (int i = 1; i <= 4; i++)
+            assertEquals("fifo order", Integer.valueOf(i), ring.remove());
+        assertTrue("empty after all polled", ring.isEmpty());
+        assertNull("nothing to poll", ring.poll());
+    }
+
+    @Test
+    public void testWrapAround() {
+        var ring = new MpscRingBuffer<Integer>(8);
+        var expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue("can add " + i, ring.offer(i));
+            if (i % 3 == 2) {
+                while (!ring.isEmpty())
+                    assertEquals("fifo order", Integer.valueOf(expected++), ring.poll());
+            }
+        }
+        while (!ring.isEmpty())
+            assertEquals("fifo order", Integer.valueOf(expected++), ring.poll());
+        assertEquals("all elements polled", 1000, expected);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        var producers = 4;
+        var perProducer = 100_000;
+        var ring = new MpscRingBuffer<long[]>(1024);
+        var pool = Executors.newFixedThreadPool(producers);
+        var done = new CountDownLatch(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                pool.execute(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        var e = new long[] {producer, i};
+                        while (!ring.offer(e))
+                            Thread.yield();
+                    }
+                    done.countDown();
+                });
+            }
+
+            var lastSeen = new long[producers];
+            Arrays.fill(lastSeen, -1L);
+            var total = 0;
+            while (total < producers * perProducer) {
+                var e = ring.poll();
+                if (e == null) {
+                    Thread.yield();
+                    continue;
+                }
+                var producer = (int)e[0];
+                assertEquals("per-producer order is kept", lastSeen[producer] + 1, e[1]);
+                lastSeen[producer] = e[1];
+                total++;
+            }
+            assertTrue("producers completed", done.await(10, TimeUnit.SECONDS));
+            assertTrue("no extra elements", ring.isEmpty());
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    @Test
+    public void testUnpublishedElementIsNotVisible() throws Exception {
+        var producers = 4;
+        var perProducer = 50_000;
+        var ring = new MpscRingBuffer<Integer>(64);
+        var pool = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                pool.execute(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!ring.offer(i))
+                            Thread.yield();
+                    }
+                });
+            }
+            var total = 0;
+            while (total < producers * perProducer) {
+                ring.awaitNotEmpty(TimeUnit.MILLISECONDS.toNanos(1));
+                // the consumer relies on this to never spin on a claimed slot
+                while (!ring.isEmpty()) {
+                    assertNotNull("non-empty buffer has a head element", ring.peek());
+                    ring.remove();
+                    total++;
+                }
+            }
+            assertTrue("no extra elements", ring.isEmpty());
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    private static void shutdown(ExecutorService pool) throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+}
@@ -2,9 +2,12 @@ package com.github.loki4j.client.util;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static java.nio.charset.StandardCharsets.UTF_8;;
 
+import java.util.Arrays;
+
 public class StringUtilsTest {
 
     @Test
@@ -16,5 +19,20 @@ public class StringUtilsTest {
             assertEquals(test.getBytes(UTF_8).length, StringUtils.utf8Length(test));
         }
     }
-    
+
+    @Test
+    public void testEncodeUtf8() {
+        var buf = new byte[6];
+        for (int codepoint = Character.MIN_CODE_POINT; codepoint <= Character.MAX_CODE_POINT; codepoint++) {
+            if(codepoint == Character.MIN_SURROGATE) codepoint=Character.MAX_SURROGATE + 1;
+            if(!Character.isDefined(codepoint)) continue;
+            String test = new String(Character.toChars(codepoint));
+            assertArrayEquals(test.getBytes(UTF_8), Arrays.copyOf(buf, StringUtils.encodeUtf8(test, buf)));
+        }
+        var unpaired = "a\uD800b\uDC00";
+        buf = new byte[unpaired.length() * 3];
+        assertArrayEquals("unpaired surrogates",
+            unpaired.getBytes(UTF_8), Arrays.copyOf(buf, StringUtils.encodeUtf8(unpaired, buf)));
+    }
+
 }
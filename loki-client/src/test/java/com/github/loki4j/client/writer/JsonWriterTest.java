@@ -5,7 +5,11 @@ import org.junit.Test;
 import static com.github.loki4j.client.batch.LogRecord.create;
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.batch.LogRecordArena;
 import com.github.loki4j.client.batch.LogRecordBatch;
 import com.github.loki4j.client.batch.LogRecordStream;
 
@@ -41,6 +45,20 @@ public class JsonWriterTest {
         assertEquals("encoded json", expectedJson, actualJson);
     }
     
+    @Test
+    public void testLabelsCached() {
+        var writer = new JsonWriter(1000);
+        writer.serializeBatch(batch);
+        assertEquals("encoded json", expectedJson, new String(writer.toByteArray()));
+
+        assertEquals("labels are cached in stream",
+            "'stream':{'level':'INFO','app':'my-app'}".replace('\'', '"'),
+            new String(stream1.jsonLabels(labels -> { throw new AssertionError("labels not cached"); })));
+
+        writer.serializeBatch(batch);
+        assertEquals("encoded json with cached labels", expectedJson, new String(writer.toByteArray()));
+    }
+
     @Test
     public void testWriteRecord() {
         var re1 = create(
@@ -81,4 +99,48 @@ public class JsonWriterTest {
 
         assertEquals("single record", expected, actual);
     }
+
+    @Test
+    public void testWriteUtf8Records() {
+        var records = new LogRecord[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            var r = batch.get(i);
+            records[i] = LogRecord.createUtf8(r.timestampMs, r.nanos, r.stream, r.message.getBytes(StandardCharsets.UTF_8));
+        }
+        var writer = new JsonWriter(1000);
+        writer.serializeBatch(new LogRecordBatch(records));
+        assertEquals("encoded json", expectedJson, new String(writer.toByteArray()));
+
+        var special = "спец !@#$%^&*()\" \n\tсимволы <>?/\\№ё:{}[]🏁\u0001\u001f\b\f\r\u007f";
+        var expectedSpecial = new JsonWriter(1000);
+        expectedSpecial.serializeBatch(new LogRecordBatch(new LogRecord[] {
+            create(100L, 0, stream1, special)}));
+        writer.serializeBatch(new LogRecordBatch(new LogRecord[] {
+            LogRecord.createUtf8(100L, 0, stream1, special.getBytes(StandardCharsets.UTF_8))}));
+        assertEquals("special chars are escaped the same way",
+            new String(expectedSpecial.toByteArray(), StandardCharsets.UTF_8),
+            new String(writer.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testWriteOffHeapRecords() {
+        var arena = new LogRecordArena(1024, 256);
+        var special = "спец !@#$%^&*()\" \n\tсимволы <>?/\\№ё:{}[]🏁\u0001\u001f\b\f\r\u007f";
+        var records = new LogRecord[batch.size() + 1];
+        for (int i = 0; i < batch.size(); i++) {
+            var r = batch.get(i);
+            records[i] = arena.create(r.timestampMs, r.nanos, r.stream, r.message.getBytes(StandardCharsets.UTF_8));
+        }
+        records[batch.size()] = arena.create(100L, 0, stream1, special.getBytes(StandardCharsets.UTF_8));
+        var heapRecords = Arrays.copyOf(batch.toArray(), batch.size() + 1);
+        heapRecords[batch.size()] = create(100L, 0, stream1, special);
+
+        var expected = new JsonWriter(1000);
+        expected.serializeBatch(new LogRecordBatch(heapRecords));
+        var writer = new JsonWriter(1000);
+        writer.serializeBatch(new LogRecordBatch(records));
+        assertEquals("off-heap messages are written the same way",
+            new String(expected.toByteArray(), StandardCharsets.UTF_8),
+            new String(writer.toByteArray(), StandardCharsets.UTF_8));
+    }
 }
@@ -6,8 +6,10 @@ import org.xerial.snappy.Snappy;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.batch.LogRecordArena;
 import com.github.loki4j.client.batch.LogRecordBatch;
 import com.github.loki4j.client.batch.LogRecordStream;
 import com.github.loki4j.client.util.ByteBufferFactory;
@@ -83,5 +85,98 @@ public class ProtobufWriterTest {
         assertArrayEquals("un-compressed messages match", expUncomp, actUncomp);
         assertEquals("deserialized", expectedPushRequest, PushRequest.parseFrom(actUncomp));
     }
-    
+
+    @Test
+    public void testLabelsCached() throws IOException {
+        var expUncomp = expectedPushRequest.toByteArray();
+        var writer = new ProtobufWriter(1000, new ByteBufferFactory(false));
+        writer.serializeBatch(batch);
+        assertArrayEquals("first batch", expUncomp, Snappy.uncompress(writer.toByteArray()));
+
+        assertEquals("labels are cached in stream",
+            "{level=\"INFO\",app=\"my-app\"}",
+            new String(stream1.protobufLabels(labels -> { throw new AssertionError("labels not cached"); })));
+
+        writer.serializeBatch(batch);
+        assertArrayEquals("batch with cached labels", expUncomp, Snappy.uncompress(writer.toByteArray()));
+    }
+
+    @Test
+    public void testEdgeCases() throws IOException {
+        var stream3 = LogRecordStream.create(2, "app", "q\"uote", "lang", "\u00FCn\u00EFc\u00F6d\u00E9");
+        var edgeBatch = new LogRecordBatch(new LogRecord[] {
+            LogRecord.create(0, 0, stream3, ""),
+            LogRecord.create(999, 999_999, stream3, "\u041F\u0440\u0438\u0432\u0435\u0442, \u4E16\u754C \uD83D\uDE00"),
+            LogRecord.create(1_700_000_000_123L, 0, stream1, "x".repeat(300)),
+        });
+        var expected = PushRequest.newBuilder()
+            .addStreams(StreamAdapter.newBuilder()
+                .setLabels(ProtobufWriter.label(stream3.labels))
+                .addEntries(EntryAdapter.newBuilder()
+                    .setTimestamp(Timestamp.newBuilder().setSeconds(0).setNanos(0))
+                    .setLine(""))
+                .addEntries(EntryAdapter.newBuilder()
+                    .setTimestamp(Timestamp.newBuilder().setSeconds(0).setNanos(999_999_999))
+                    .setLine("\u041F\u0440\u0438\u0432\u0435\u0442, \u4E16\u754C \uD83D\uDE00")))
+            .addStreams(StreamAdapter.newBuilder()
+                .setLabels("{level=\"INFO\",app=\"my-app\"}")
+                .addEntries(EntryAdapter.newBuilder()
+                    .setTimestamp(Timestamp.newBuilder().setSeconds(1_700_000_000L).setNanos(123_000_000))
+                    .setLine("x".repeat(300))))
+            .build();
+
+        var writer = new ProtobufWriter(2000, new ByteBufferFactory(false));
+        // the writer state must not leak from one batch to another
+        writer.serializeBatch(batch);
+        writer.toByteArray();
+        writer.serializeBatch(edgeBatch);
+
+        var actUncomp = Snappy.uncompress(writer.toByteArray());
+        assertArrayEquals("un-compressed messages match", expected.toByteArray(), actUncomp);
+        assertEquals("deserialized", expected, PushRequest.parseFrom(actUncomp));
+    }
+
+    @Test
+    public void testUtf8Records() throws IOException {
+        var records = new LogRecord[batch.size() + 1];
+        for (int i = 0; i < batch.size(); i++) {
+            var r = batch.get(i);
+            records[i] = LogRecord.createUtf8(r.timestampMs, r.nanos, r.stream, r.message.getBytes(StandardCharsets.UTF_8));
+        }
+        records[batch.size()] = LogRecord.createUtf8(6000, 5, stream1, new byte[0]);
+        var utf8Batch = new LogRecordBatch(records);
+
+        var expected = expectedPushRequest.toBuilder();
+        expected.getStreamsBuilder(1).addEntries(EntryAdapter.newBuilder()
+            .setTimestamp(Timestamp.newBuilder().setSeconds(6).setNanos(5))
+            .setLine(""));
+
+        var writer = new ProtobufWriter(1000, new ByteBufferFactory(false));
+        writer.serializeBatch(utf8Batch);
+        var actUncomp = Snappy.uncompress(writer.toByteArray());
+        assertArrayEquals("un-compressed messages match", expected.build().toByteArray(), actUncomp);
+    }
+
+    @Test
+    public void testOffHeapRecords() throws IOException {
+        var arena = new LogRecordArena(1024, 256);
+        var records = new LogRecord[batch.size() + 1];
+        for (int i = 0; i < batch.size(); i++) {
+            var r = batch.get(i);
+            records[i] = arena.create(r.timestampMs, r.nanos, r.stream, r.message.getBytes(StandardCharsets.UTF_8));
+        }
+        records[batch.size()] = arena.create(6000, 5, stream1, new byte[0]);
+        var offHeapBatch = new LogRecordBatch(records);
+
+        var expected = expectedPushRequest.toBuilder();
+        expected.getStreamsBuilder(1).addEntries(EntryAdapter.newBuilder()
+            .setTimestamp(Timestamp.newBuilder().setSeconds(6).setNanos(5))
+            .setLine(""));
+
+        var writer = new ProtobufWriter(1000, new ByteBufferFactory(true));
+        writer.serializeBatch(offHeapBatch);
+        var actUncomp = Snappy.uncompress(writer.toByteArray());
+        assertArrayEquals("un-compressed messages match", expected.build().toByteArray(), actUncomp);
+    }
+
 }
@@ -0,0 +1,57 @@
+package com.github.loki4j.pkg.dslplatform.json;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class RawJsonWriterTest {
+
+    private static String quotedNumber(long value, int fraction, int fractionDigits) {
+        var raw = new RawJsonWriter(4);
+        raw.writeQuotedNumber(value, fraction, fractionDigits);
+        return new String(raw.toByteArray());
+    }
+
+    @Test
+    public void testWriteQuotedNumber() {
+        assertEquals("zero", "\"0000000\"", quotedNumber(0L, 0, 6));
+        assertEquals("padded fraction", "\"100000042\"", quotedNumber(100L, 42, 6));
+        assertEquals("full fraction", "\"1999999\"", quotedNumber(1L, 999_999, 6));
+        assertEquals("no fraction", "\"12345\"", quotedNumber(12345L, 0, 0));
+        assertEquals("negative", "\"-5000007\"", quotedNumber(-5L, 7, 6));
+        assertEquals("max long", "\"" + Long.MAX_VALUE + "000001\"", quotedNumber(Long.MAX_VALUE, 1, 6));
+        assertEquals("min long", "\"" + Long.MIN_VALUE + "000001\"", quotedNumber(Long.MIN_VALUE, 1, 6));
+    }
+
+    @Test
+    public void testWriteQuotedNumberAsTimestamp() {
+        var rnd = new Random(42L);
+        var raw = new RawJsonWriter(16);
+        var expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            var ms = rnd.nextLong() >>> rnd.nextInt(64);
+            var nanos = rnd.nextInt(1_000_000);
+            raw.writeQuotedNumber(ms, nanos, 6);
+            expected.append('"').append(ms).append(String.format("%06d", nanos)).append('"');
+        }
+        assertEquals("same as string concatenation", expected.toString(), new String(raw.toByteArray()));
+    }
+
+    @Test
+    public void testWriteUtf8String() {
+        var chars = new StringBuilder("plain \u00FC \u4E16 \uD83D\uDE00 \"\\/");
+        for (char c = 0; c < 128; c++)
+            chars.append(c);
+        var str = chars.toString();
+
+        var expected = new RawJsonWriter(4);
+        expected.writeString(str);
+        var actual = new RawJsonWriter(4);
+        actual.writeUtf8String(str.getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals("same as string encoding", expected.toByteArray(), actual.toByteArray());
+    }
+
+}
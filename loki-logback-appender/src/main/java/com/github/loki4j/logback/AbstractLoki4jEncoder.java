@@ -1,16 +1,23 @@
 package com.github.loki4j.logback;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import com.github.loki4j.client.batch.LogRecordStream;
+import com.github.loki4j.client.batch.LogRecordStreamRegistry;
+import com.github.loki4j.client.util.StringUtils;
 
 import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.pattern.EnsureExceptionHandling;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.core.pattern.Converter;
 import ch.qos.logback.core.spi.ContextAwareBase;
 
 /**
@@ -19,6 +26,44 @@ import ch.qos.logback.core.spi.ContextAwareBase;
 public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements Loki4jEncoder {
 
     private static final String STATIC_STREAM_KEY = "STATIC_STREAM_KEY";
+
+    private static final String OVERFLOW_STREAM_KEY = "OVERFLOW_STREAM_KEY";
+    private static final String[] OVERFLOW_STREAM_LABELS = new String[] {"overflow", "true"};
+
+    /**
+     * What to do with a new label set once the limit of streams is reached
+     */
+    enum StreamOverflowPolicy {
+        /**
+         * Evict the least recently used stream
+         */
+        EVICT,
+        /**
+         * Send the record to a single stream labeled {@code overflow=true}
+         */
+        OVERFLOW,
+        /**
+         * Drop the label with the highest number of distinct values
+         */
+        DROP_LABEL,
+        /**
+         * Drop the record
+         */
+        REJECT;
+
+        static StreamOverflowPolicy parse(String value) {
+            for (var p : values()) {
+                if (p.name().replace("_", "").equalsIgnoreCase(value))
+                    return p;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Thread-local buffers larger than this are not kept for the next event
+     */
+    private static final int MAX_RETAINED_BUFFER_CHARS = 64 * 1024;
     
     public static final class LabelCfg {
         /**
@@ -38,6 +83,12 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
          * If false, you should take care of proper formatting
          */
         boolean nopex = true;
+        /**
+         * If true, label pattern is split to key-value pairs once on start,
+         * and each label value is rendered directly from the event.
+         * Separators must not be used inside the conversion words of the pattern
+         */
+        boolean structured = false;
         public void setPattern(String pattern) {
             this.pattern = pattern;
         }
@@ -50,6 +101,9 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
         public void setNopex(boolean nopex) {
             this.nopex = nopex;
         }
+        public void setStructured(boolean structured) {
+            this.structured = structured;
+        }
     }
 
     public static final class MessageCfg {
@@ -64,7 +118,7 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
 
     protected final Charset charset = Charset.forName("UTF-8");
 
-    private final AtomicReference<HashMap<String, LogRecordStream>> streams = new AtomicReference<>(new HashMap<>());
+    private LogRecordStreamRegistry streams = new LogRecordStreamRegistry();
 
     private final AtomicInteger nanoCounter = new AtomicInteger(0);
 
@@ -85,6 +139,39 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
      */
     private volatile boolean staticLabels = false;
 
+    /**
+     * If true, log messages are rendered into a reusable per-thread buffer
+     * and encoded to UTF-8 right away, so no intermediate String is created
+     * and writers do not need to encode messages once again.
+     */
+    private boolean preEncodeMessages = false;
+
+    /**
+     * Max number of streams (unique label sets) the encoder keeps track of.
+     * 0 means unlimited
+     */
+    private int maxStreams = 0;
+
+    /**
+     * What to do with a new label set once maxStreams is reached:
+     * evict, overflow, dropLabel, or reject
+     */
+    private String streamOverflowPolicy = "evict";
+
+    private StreamOverflowPolicy overflowPolicy;
+
+    /**
+     * A label dropped from new streams once maxStreams is reached,
+     * used only with DROP_LABEL policy. Empty if there is no label to drop
+     */
+    private volatile String droppedLabel;
+
+    /**
+     * Set once the limit of streams with the label dropped is reached,
+     * used only with DROP_LABEL policy
+     */
+    private volatile boolean droppedLabelOverflow = false;
+
     /**
      * Max seen timestamp at the moment.
      * We can not send an event with timestamp less than this,
@@ -95,22 +182,69 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
     private PatternLayout labelPatternLayout;
     private PatternLayout messagePatternLayout;
 
+    private Pattern pairSeparatorPattern;
+    private Pattern keyValueSeparatorPattern;
+
+    /**
+     * Label names for structured labels, null if structured labels are disabled
+     */
+    private String[] labelKeys;
+    /**
+     * First converters of compiled label value patterns for structured labels
+     */
+    private List<Converter<ILoggingEvent>> labelHeads;
+    private List<PatternLayout> labelValueLayouts;
+
+    private final ThreadLocal<LabelRenderer> labelRenderer = ThreadLocal.withInitial(LabelRenderer::new);
+
+    /**
+     * First converter of compiled message pattern, used for pre-encoding
+     */
+    private Converter<ILoggingEvent> messageHead;
+
+    private final ThreadLocal<Utf8Renderer> renderer = ThreadLocal.withInitial(Utf8Renderer::new);
+
     private boolean started = false;
 
     public void start() {
+        overflowPolicy = StreamOverflowPolicy.parse(streamOverflowPolicy);
+        if (overflowPolicy == null) {
+            addWarn("Unknown streamOverflowPolicy=" + streamOverflowPolicy + ". Using 'evict'");
+            overflowPolicy = StreamOverflowPolicy.EVICT;
+        }
+        if (maxStreams < 0) {
+            addWarn("Configured value maxStreams=" + maxStreams + " is less than 0. Using unlimited streams");
+            maxStreams = 0;
+        }
+        streams = new LogRecordStreamRegistry(maxStreams, overflowPolicy == StreamOverflowPolicy.EVICT);
+
         // init with default label pattern if not set in config
         var resolvedLblPat = label.pattern == null
             ? "level=%level,host=" + context.getProperty(CoreConstants.HOSTNAME_KEY)
             : label.pattern;
-        // check nopex flag
-        var labelPattern = label.nopex
-            ? resolvedLblPat + "%nopex"
-            : resolvedLblPat;
-
-        labelPatternLayout = initPatternLayout(labelPattern);
-        labelPatternLayout.start();
+        pairSeparatorPattern = Pattern.compile(Pattern.quote(label.pairSeparator));
+        keyValueSeparatorPattern = Pattern.compile(Pattern.quote(label.keyValueSeparator));
+
+        if (label.structured) {
+            initLabelValueLayouts(resolvedLblPat);
+        } else {
+            // check nopex flag
+            var labelPattern = label.nopex
+                ? resolvedLblPat + "%nopex"
+                : resolvedLblPat;
+
+            labelPatternLayout = initPatternLayout(labelPattern);
+            labelPatternLayout.start();
+        }
 
         messagePatternLayout = initPatternLayout(message.pattern);
+        if (preEncodeMessages) {
+            // same as PatternLayout's default, but we also need the converter chain
+            messagePatternLayout.setPostCompileProcessor((ctx, head) -> {
+                new EnsureExceptionHandling().process(ctx, head);
+                messageHead = head;
+            });
+        }
         messagePatternLayout.start();
 
         this.started = true;
@@ -119,7 +253,10 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
     public void stop() {
         this.started = false;
         messagePatternLayout.stop();
-        labelPatternLayout.stop();
+        if (labelPatternLayout != null)
+            labelPatternLayout.stop();
+        if (labelValueLayouts != null)
+            labelValueLayouts.forEach(PatternLayout::stop);
     }
 
     @Override
@@ -128,13 +265,21 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
     }
 
     public LogRecordStream eventToStream(ILoggingEvent e) {
-        return stream(labelPatternLayout.doLayout(e).intern());
+        if (labelKeys != null)
+            return structuredStream(e);
+        return stream(labelPatternLayout.doLayout(e));
     }
 
     public String eventToMessage(ILoggingEvent e) {
         return messagePatternLayout.doLayout(e);
     }
 
+    public byte[] eventToMessageUtf8(ILoggingEvent e) {
+        if (messageHead == null)
+            return Loki4jEncoder.super.eventToMessageUtf8(e);
+        return renderer.get().render(messageHead, e);
+    }
+
     public int timestampToNanos(long timestampMs) {
         final long nextMs = timestampMs % 1000; // nextMs=nnn
 
@@ -168,27 +313,158 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
         return patternLayout;
     }
 
+    private void initLabelValueLayouts(String labelPattern) {
+        var pairs = extractStreamKVPairs(labelPattern);
+        labelKeys = new String[pairs.length / 2];
+        labelHeads = new ArrayList<>(labelKeys.length);
+        labelValueLayouts = new ArrayList<>(labelKeys.length);
+        for (int i = 0; i < labelKeys.length; i++) {
+            labelKeys[i] = pairs[i * 2];
+            var valuePattern = pairs[i * 2 + 1];
+            // if nopex is false, the exception is rendered after the last label
+            // the same way as PatternLayout does it for the whole label pattern
+            var ensureException = !label.nopex && i == labelKeys.length - 1;
+            var layout = initPatternLayout(valuePattern);
+            final var idx = i;
+            labelHeads.add(null);
+            layout.setPostCompileProcessor((ctx, head) -> {
+                if (ensureException)
+                    new EnsureExceptionHandling().process(ctx, head);
+                labelHeads.set(idx, head);
+            });
+            layout.start();
+            labelValueLayouts.add(layout);
+        }
+    }
+
+    private LogRecordStream structuredStream(ILoggingEvent e) {
+        if (staticLabels) {
+            var stream = streams.get(STATIC_STREAM_KEY);
+            if (stream != null)
+                return stream;
+        }
+        var renderer = labelRenderer.get();
+        var hash = renderer.render(labelHeads, e);
+        if (staticLabels)
+            return streams.register(STATIC_STREAM_KEY, renderer.labels(labelKeys), true);
+        var stream = streams.get(hash, renderer, LabelRenderer::matches);
+        if (stream == null) {
+            var labels = renderer.labels(labelKeys);
+            stream = streams.register(hash, labels);
+            if (stream == null)
+                stream = overflowStream(labels);
+        }
+        return stream;
+    }
+
     private LogRecordStream stream(String input) {
         final var streamKey = staticLabels ? STATIC_STREAM_KEY : input;
-        return streams
-            .updateAndGet(m -> {
-                if (!m.containsKey(streamKey)) {
-                    var nm = new HashMap<>(m);
-                    nm.put(streamKey, LogRecordStream.create(
-                        m.size(), extractStreamKVPairs(input)));
-                    return nm;
-                } else {
-                    return m;
+        var stream = streams.get(streamKey);
+        if (stream == null) {
+            var labels = extractStreamKVPairs(input);
+            stream = streams.register(streamKey, labels, staticLabels);
+            if (stream == null)
+                stream = overflowStream(labels);
+        }
+        return stream;
+    }
+
+    /**
+     * Finds a stream for the labels that can not be registered
+     * because the limit of streams is reached
+     *
+     * @return A stream to use instead, or null if the record should be dropped
+     */
+    private LogRecordStream overflowStream(String[] labels) {
+        switch (overflowPolicy) {
+            case OVERFLOW:
+                return overflowStream();
+            case DROP_LABEL:
+                var reduced = dropLabel(labels);
+                if (reduced == null)
+                    return overflowStream();
+                // labels are compared as they are, so any chars in them are safe
+                var hash = Arrays.hashCode(reduced);
+                var stream = streams.get(hash, reduced, (s, l) -> Arrays.equals(s.labels, l));
+                if (stream != null)
+                    return stream;
+                // streams with the label dropped get their own limit of maxStreams,
+                // once it is reached records go to the overflow stream
+                if (droppedLabelOverflow || streams.size() >= maxStreams * 2) {
+                    if (!droppedLabelOverflow) {
+                        droppedLabelOverflow = true;
+                        addWarn(String.format(
+                            "Max number of streams (%s) with label '%s' dropped is reached. Sending new streams to the overflow stream",
+                            maxStreams, droppedLabel));
+                    }
+                    return overflowStream();
                 }
-            })
-            .get(streamKey);
+                return streams.register(hash, reduced, true);
+            default:
+                return null;
+        }
+    }
+
+    private LogRecordStream overflowStream() {
+        var overflow = streams.get(OVERFLOW_STREAM_KEY);
+        return overflow != null
+            ? overflow
+            : streams.register(OVERFLOW_STREAM_KEY, OVERFLOW_STREAM_LABELS, true);
+    }
+
+    /**
+     * @return Labels without the dropped one,
+     * or null if there is no such label in the given label set
+     */
+    private String[] dropLabel(String[] labels) {
+        var dropped = droppedLabel;
+        if (dropped == null) {
+            var mostDistinct = mostDistinctLabel();
+            dropped = mostDistinct == null ? "" : mostDistinct;
+            droppedLabel = dropped;
+            if (mostDistinct != null)
+                addWarn(String.format(
+                    "Max number of streams (%s) is reached. Label '%s' will be dropped from new streams",
+                    maxStreams, dropped));
+        }
+        if (dropped.isEmpty())
+            return null;
+        for (int i = 0; i < labels.length; i += 2) {
+            if (labels[i].equals(dropped)) {
+                var result = new String[labels.length - 2];
+                System.arraycopy(labels, 0, result, 0, i);
+                System.arraycopy(labels, i + 2, result, i, labels.length - i - 2);
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a label with the highest number of distinct values among registered streams
+     */
+    private String mostDistinctLabel() {
+        var values = new HashMap<String, HashSet<String>>();
+        streams.forEach(s -> {
+            for (int i = 0; i < s.labels.length; i += 2)
+                values.computeIfAbsent(s.labels[i], k -> new HashSet<>()).add(s.labels[i + 1]);
+        });
+        String result = null;
+        var max = 0;
+        for (var e : values.entrySet()) {
+            if (e.getValue().size() > max) {
+                max = e.getValue().size();
+                result = e.getKey();
+            }
+        }
+        return result;
     }
 
     String[] extractStreamKVPairs(String stream) {
-        var pairs = stream.split(Pattern.quote(label.pairSeparator));
+        var pairs = pairSeparatorPattern.split(stream);
         var result = new String[pairs.length * 2];
         for (int i = 0; i < pairs.length; i++) {
-            var kv = pairs[i].split(Pattern.quote(label.keyValueSeparator));
+            var kv = keyValueSeparatorPattern.split(pairs[i]);
             if (kv.length == 2) {
                 result[i * 2] = kv[0];
                 result[i * 2 + 1] = kv[1];
@@ -209,6 +485,24 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
         this.message = message;
     }
 
+    public LogRecordStreamRegistry getStreamRegistry() {
+        return streams;
+    }
+
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+    public void setMaxStreams(int maxStreams) {
+        this.maxStreams = maxStreams;
+    }
+
+    public String getStreamOverflowPolicy() {
+        return streamOverflowPolicy;
+    }
+    public void setStreamOverflowPolicy(String streamOverflowPolicy) {
+        this.streamOverflowPolicy = streamOverflowPolicy;
+    }
+
     public boolean getSortByTime() {
         return sortByTime;
     }
@@ -216,6 +510,13 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
         this.sortByTime = sortByTime;
     }
 
+    public boolean getPreEncodeMessages() {
+        return preEncodeMessages;
+    }
+    public void setPreEncodeMessages(boolean preEncodeMessages) {
+        this.preEncodeMessages = preEncodeMessages;
+    }
+
     public boolean getStaticLabels() {
         return staticLabels;
     }
@@ -223,4 +524,96 @@ public abstract class AbstractLoki4jEncoder extends ContextAwareBase implements
         this.staticLabels = staticLabels;
     }
 
+    /**
+     * Per-thread buffers for rendering a message pattern directly to UTF-8
+     */
+    private static final class Utf8Renderer {
+        private StringBuilder chars = new StringBuilder(256);
+        private byte[] bytes = new byte[768];
+
+        byte[] render(Converter<ILoggingEvent> head, ILoggingEvent e) {
+            chars.setLength(0);
+            for (var c = head; c != null; c = c.getNext())
+                c.write(chars, e);
+
+            var maxBytes = chars.length() * 3;
+            if (bytes.length < maxBytes)
+                bytes = new byte[maxBytes];
+            var len = StringUtils.encodeUtf8(chars, bytes);
+            var result = Arrays.copyOf(bytes, len);
+
+            if (chars.capacity() > MAX_RETAINED_BUFFER_CHARS) {
+                chars = new StringBuilder(256);
+                bytes = new byte[768];
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Per-thread buffer for rendering structured label values
+     * without creating a string for each of them
+     */
+    private static final class LabelRenderer {
+        private final StringBuilder chars = new StringBuilder(128);
+        private int[] ends = new int[8];
+        private int count;
+
+        /**
+         * Renders all label values one after another into the buffer
+         *
+         * @return 64-bit FNV-1a hash of the values
+         */
+        long render(List<Converter<ILoggingEvent>> heads, ILoggingEvent e) {
+            chars.setLength(0);
+            count = heads.size();
+            if (ends.length < count)
+                ends = new int[count];
+            var hash = 0xCBF29CE484222325L;
+            for (int i = 0; i < count; i++) {
+                var start = chars.length();
+                for (var c = heads.get(i); c != null; c = c.getNext())
+                    c.write(chars, e);
+                ends[i] = chars.length();
+                for (int j = start; j < ends[i]; j++)
+                    hash = (hash ^ chars.charAt(j)) * 0x100000001B3L;
+                // value separator, can not be confused with any char
+                hash = (hash ^ 0x10000) * 0x100000001B3L;
+            }
+            return hash;
+        }
+
+        /**
+         * Checks if stream's label values equal to the values rendered last time
+         */
+        static boolean matches(LogRecordStream stream, LabelRenderer r) {
+            var labels = stream.labels;
+            if (labels.length != r.count * 2)
+                return false;
+            var start = 0;
+            for (int i = 0; i < r.count; i++) {
+                var value = labels[i * 2 + 1];
+                if (value.length() != r.ends[i] - start)
+                    return false;
+                for (int j = 0; j < value.length(); j++) {
+                    if (value.charAt(j) != r.chars.charAt(start + j))
+                        return false;
+                }
+                start = r.ends[i];
+            }
+            return true;
+        }
+
+        String[] labels(String[] keys) {
+            var result = new String[count * 2];
+            var start = 0;
+            for (int i = 0; i < count; i++) {
+                result[i * 2] = keys[i];
+                result[i * 2 + 1] = chars.substring(start, ends[i]);
+                start = ends[i];
+            }
+            return result;
+        }
+    }
+
 }
@@ -0,0 +1,55 @@
+package com.github.loki4j.logback;
+
+import java.util.function.DoubleSupplier;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * A load shedding policy that drops events of less important levels first.
+ * Each level has a threshold for the pipeline fill ratio, events of this level
+ * are dropped once the fill ratio reaches the threshold.
+ * Threshold 1.0 means events are dropped only when the pipeline is full
+ */
+public class LevelLoadSheddingPolicy implements LoadSheddingPolicy {
+
+    private double traceThreshold = 0.5;
+    private double debugThreshold = 0.5;
+    private double infoThreshold = 0.8;
+    private double warnThreshold = 1.0;
+    private double errorThreshold = 1.0;
+
+    @Override
+    public boolean shouldDrop(ILoggingEvent event, DoubleSupplier fillRatio) {
+        var threshold = thresholdOf(event.getLevel());
+        // the fill ratio is not computed for the levels that are never shed
+        return threshold < 1.0 && fillRatio.getAsDouble() >= threshold;
+    }
+
+    private double thresholdOf(Level level) {
+        switch (level.toInt()) {
+            case Level.ERROR_INT: return errorThreshold;
+            case Level.WARN_INT: return warnThreshold;
+            case Level.INFO_INT: return infoThreshold;
+            case Level.DEBUG_INT: return debugThreshold;
+            default: return traceThreshold;
+        }
+    }
+
+    public void setTraceThreshold(double traceThreshold) {
+        this.traceThreshold = traceThreshold;
+    }
+    public void setDebugThreshold(double debugThreshold) {
+        this.debugThreshold = debugThreshold;
+    }
+    public void setInfoThreshold(double infoThreshold) {
+        this.infoThreshold = infoThreshold;
+    }
+    public void setWarnThreshold(double warnThreshold) {
+        this.warnThreshold = warnThreshold;
+    }
+    public void setErrorThreshold(double errorThreshold) {
+        this.errorThreshold = errorThreshold;
+    }
+
+}
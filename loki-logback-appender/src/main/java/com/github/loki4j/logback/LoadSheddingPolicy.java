@@ -0,0 +1,26 @@
+package com.github.loki4j.logback;
+
+import java.util.function.DoubleSupplier;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Basic interface that all Loki4j load shedding policies must implement.
+ * A policy decides which events to drop before the appender does any work on them,
+ * so the events that matter most are kept when the pipeline is filling up.
+ */
+public interface LoadSheddingPolicy {
+
+    /**
+     * Checks if the event should be dropped.
+     * This method is called for each event, so it should be cheap
+     *
+     * @param event An event to check
+     * @param fillRatio Share of the pipeline capacity taken by the events
+     * not sent yet, from 0 to 1. Computing this value takes some time,
+     * so it should be requested only if needed
+     * @return true if the event should be dropped
+     */
+    boolean shouldDrop(ILoggingEvent event, DoubleSupplier fillRatio);
+
+}
@@ -1,8 +1,10 @@
 package com.github.loki4j.logback;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
 
 import com.github.loki4j.client.pipeline.DefaultPipeline;
+import com.github.loki4j.client.pipeline.Loki4jMetrics;
 import com.github.loki4j.client.pipeline.PipelineConfig;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
@@ -30,6 +32,38 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
      * max items/bytes limits for this batch are not reached
      */
     private long batchTimeoutMs = 60 * 1000;
+    /**
+     * Max time in milliseconds the oldest event of a batch should wait before it is sent,
+     * including HTTP round-trip time. If set, the effective batch size and linger time
+     * are tuned to the observed traffic. 0 disables adaptive batching
+     */
+    private long batchTargetLatencyMs = 0;
+    /**
+     * Number of batches per second each encoder tries to keep if adaptive batching is enabled
+     */
+    private double batchTargetSendRate = 1.0;
+
+    /**
+     * Max number of events to keep in the intake buffer waiting to be batched.
+     * The value is rounded up to the nearest power of two.
+     * When the buffer is full, incoming log events are dropped
+     */
+    private int bufferMaxItems = 64 * 1024;
+
+    /**
+     * Max number of bytes of messages of the events waiting to be encoded.
+     * When this limit is reached, incoming log events are dropped
+     */
+    private long bufferMaxBytes = batchMaxBytes * 10;
+
+    /**
+     * Number of threads to encode batches in parallel.
+     * Records are distributed between the encoders by stream,
+     * so the order of records within each stream is preserved.
+     * Batches of the same encoder are sent one after another,
+     * so this is also the max number of batches being sent to Loki concurrently
+     */
+    private int encoderThreads = 1;
 
     /**
      * Max number of bytes to keep in the send queue.
@@ -37,6 +71,58 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
      */
     private long sendQueueMaxBytes = batchMaxBytes * 10;
 
+    /**
+     * Path to a file for keeping the send queue on disk, so unsent batches
+     * survive restarts of the application. If not set, the send queue is kept in memory
+     */
+    private String sendQueueFile = null;
+
+    /**
+     * Max number of bytes to keep in the send queue file.
+     * Used only when a new file is created
+     */
+    private long sendQueueFileMaxBytes = 256L * 1024 * 1024;
+
+    /**
+     * What to do with a new event when the pipeline is full:
+     * "drop" - drop the event, "block" - block the logging thread until
+     * there is free space or backpressureTimeoutMs expires,
+     * "blockForever" - block the logging thread until there is free space
+     */
+    private String backpressure = "drop";
+
+    /**
+     * Max time in milliseconds to block the logging thread in "block" mode
+     */
+    private long backpressureTimeoutMs = 1000;
+
+    /**
+     * Max number of times to retry sending a batch if Loki responded with 429 or 5xx,
+     * or the connection could not be established. 0 disables retries
+     */
+    private int maxRetries = 5;
+
+    /**
+     * Delay in milliseconds before the first retry, doubled for each next retry
+     */
+    private long minRetryBackoffMs = 500;
+
+    /**
+     * Max delay in milliseconds between retries
+     */
+    private long maxRetryBackoffMs = 60 * 1000;
+
+    /**
+     * Number of retries allowed per each batch sent for the first time
+     */
+    private double retryBudgetRatio = 0.2;
+
+    /**
+     * Max number of bytes to send to Loki per second, adapted automatically
+     * to 429 responses from Loki. 0 means no limit
+     */
+    private long sendRateLimitBytesPerSec = 0;
+
     /**
      * If true, the appender will print its own debug logs to stderr
      */
@@ -59,11 +145,28 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
      */
     private boolean useDirectBuffers = true;
 
+    /**
+     * If true, messages of the events waiting to be encoded are kept
+     * in an off-heap arena sized from sendQueueMaxBytes
+     */
+    private boolean offHeapMessages = false;
+
     /**
      * An encoder to use for converting log record batches to format acceptable by Loki
      */
     private Loki4jEncoder encoder;
 
+    /**
+     * If true, the encoder renders messages directly to UTF-8
+     */
+    private boolean preEncodeMessages;
+
+    /**
+     * A policy for dropping less important events when the pipeline is filling up,
+     * no events are dropped before the pipeline is full if not set
+     */
+    private LoadSheddingPolicy shedding;
+
     /**
      * A configurator for HTTP sender
      */
@@ -74,6 +177,11 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
      */
     private DefaultPipeline pipeline;
 
+    /**
+     * Fill ratio of the pipeline, computed on demand by the shedding policy
+     */
+    private DoubleSupplier fillRatio;
+
     /**
      * A counter for events dropped due to backpressure
      */
@@ -89,20 +197,82 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
         }
 
         addInfo(String.format("Starting with " +
-            "batchMaxItems=%s, batchMaxBytes=%s, batchTimeout=%s, sendQueueMaxBytes=%s...",
-            batchMaxItems, batchMaxBytes, batchTimeoutMs, sendQueueMaxBytes));
+            "batchMaxItems=%s, batchMaxBytes=%s, batchTimeout=%s, bufferMaxItems=%s, bufferMaxBytes=%s, encoderThreads=%s, sendQueueMaxBytes=%s...",
+            batchMaxItems, batchMaxBytes, batchTimeoutMs, bufferMaxItems, bufferMaxBytes, encoderThreads, sendQueueMaxBytes));
+
+        if (encoderThreads < 1) {
+            addWarn("Configured value encoderThreads=" + encoderThreads + " is less than 1");
+            encoderThreads = 1;
+        }
+
+        // each encoder should be able to collect a full batch
+        if (bufferMaxBytes < (long) batchMaxBytes * encoderThreads) {
+            addWarn("Configured value bufferMaxBytes=" + bufferMaxBytes + " is less than `batchMaxBytes * encoderThreads`");
+            bufferMaxBytes = (long) batchMaxBytes * encoderThreads;
+        }
 
         if (sendQueueMaxBytes < batchMaxBytes * 5) {
             addWarn("Configured value sendQueueMaxBytes=" + sendQueueMaxBytes + " is less than `batchMaxBytes * 5`");
             sendQueueMaxBytes = batchMaxBytes * 5;
         }
 
+        if (sendQueueFile != null && sendQueueFileMaxBytes < batchMaxBytes * 5) {
+            addWarn("Configured value sendQueueFileMaxBytes=" + sendQueueFileMaxBytes + " is less than `batchMaxBytes * 5`");
+            sendQueueFileMaxBytes = batchMaxBytes * 5;
+        }
+
+        var backpressureMode = PipelineConfig.BackpressureMode.parse(backpressure);
+        if (backpressureMode == null) {
+            addWarn("Unknown backpressure=" + backpressure + ". Using 'drop'");
+            backpressureMode = PipelineConfig.BackpressureMode.DROP;
+        }
+
+        if (backpressureTimeoutMs < 0) {
+            addWarn("Configured value backpressureTimeoutMs=" + backpressureTimeoutMs + " is negative");
+            backpressureTimeoutMs = 0;
+        }
+
+        if (batchTargetSendRate <= 0) {
+            addWarn("Configured value batchTargetSendRate=" + batchTargetSendRate + " is not positive");
+            batchTargetSendRate = 1.0;
+        }
+
+        if (maxRetries < 0) {
+            addWarn("Configured value maxRetries=" + maxRetries + " is less than 0");
+            maxRetries = 0;
+        }
+
+        if (minRetryBackoffMs < 1) {
+            addWarn("Configured value minRetryBackoffMs=" + minRetryBackoffMs + " is less than 1");
+            minRetryBackoffMs = 1;
+        }
+
+        if (maxRetryBackoffMs < minRetryBackoffMs) {
+            addWarn("Configured value maxRetryBackoffMs=" + maxRetryBackoffMs + " is less than minRetryBackoffMs");
+            maxRetryBackoffMs = minRetryBackoffMs;
+        }
+
+        if (retryBudgetRatio < 0) {
+            addWarn("Configured value retryBudgetRatio=" + retryBudgetRatio + " is negative");
+            retryBudgetRatio = 0;
+        }
+
+        if (sendRateLimitBytesPerSec < 0) {
+            addWarn("Configured value sendRateLimitBytesPerSec=" + sendRateLimitBytesPerSec + " is negative");
+            sendRateLimitBytesPerSec = 0;
+        }
+
         if (encoder == null) {
             addWarn("No encoder specified in the config. Using JsonEncoder with default settings");
             encoder = new JsonEncoder();
         }
         encoder.setContext(context);
         encoder.start();
+        // off-heap arena stores messages as UTF-8 bytes
+        preEncodeMessages = encoder.getPreEncodeMessages() || offHeapMessages;
+        var streamRegistry = encoder.getStreamRegistry();
+        if (metricsEnabled && streamRegistry != null)
+            Loki4jMetrics.registerStreamMetrics(getName(), streamRegistry);
 
         if (sender == null) {
             addWarn("No sender specified in the config. Trying to use JavaHttpSender with default settings");
@@ -114,10 +284,24 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
             .setBatchMaxItems(batchMaxItems)
             .setBatchMaxBytes(batchMaxBytes)
             .setBatchTimeoutMs(batchTimeoutMs)
+            .setBatchTargetLatencyMs(batchTargetLatencyMs)
+            .setBatchTargetSendRate(batchTargetSendRate)
             .setSortByTime(encoder.getSortByTime())
-            .setStaticLabels(encoder.getStaticLabels())
+            .setBufferMaxItems(bufferMaxItems)
+            .setBufferMaxBytes(bufferMaxBytes)
+            .setEncoderThreads(encoderThreads)
             .setSendQueueMaxBytes(sendQueueMaxBytes)
+            .setSendQueueFile(sendQueueFile)
+            .setSendQueueFileMaxBytes(sendQueueFileMaxBytes)
+            .setBackpressureMode(backpressureMode)
+            .setBackpressureTimeoutMs(backpressureTimeoutMs)
+            .setMaxRetries(maxRetries)
+            .setMinRetryBackoffMs(minRetryBackoffMs)
+            .setMaxRetryBackoffMs(maxRetryBackoffMs)
+            .setRetryBudgetRatio(retryBudgetRatio)
+            .setSendRateLimitBytesPerSec(sendRateLimitBytesPerSec)
             .setUseDirectBuffers(useDirectBuffers)
+            .setOffHeapMessages(offHeapMessages)
             .setDrainOnStop(drainOnStop)
             .setMetricsEnabled(metricsEnabled)
             .setWriter(encoder.getWriterFactory())
@@ -127,6 +311,7 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
             .build();
 
         pipeline = new DefaultPipeline(pipelineConf);
+        fillRatio = pipeline::getFillRatio;
         pipeline.start();
 
         super.start();
@@ -151,11 +336,24 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
 
     @Override
     protected void append(ILoggingEvent event) {
-        var appended = pipeline.append(
-            event.getTimeStamp(),
-            encoder.timestampToNanos(event.getTimeStamp()),
-            () -> encoder.eventToStream(event),
-            () -> encoder.eventToMessage(event));
+        // shed events before any work is spent on rendering them
+        if (shedding != null && shedding.shouldDrop(event, fillRatio)) {
+            pipeline.eventShed();
+            reportDroppedEvents();
+            return;
+        }
+
+        var appended = preEncodeMessages
+            ? pipeline.appendUtf8(
+                event.getTimeStamp(),
+                encoder.timestampToNanos(event.getTimeStamp()),
+                () -> encoder.eventToStream(event),
+                () -> encoder.eventToMessageUtf8(event))
+            : pipeline.append(
+                event.getTimeStamp(),
+                encoder.timestampToNanos(event.getTimeStamp()),
+                () -> encoder.eventToStream(event),
+                () -> encoder.eventToMessage(event));
 
         if (!appended)
             reportDroppedEvents();
@@ -201,9 +399,51 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
     public void setBatchTimeoutMs(long batchTimeoutMs) {
         this.batchTimeoutMs = batchTimeoutMs;
     }
+    public void setBatchTargetLatencyMs(long batchTargetLatencyMs) {
+        this.batchTargetLatencyMs = batchTargetLatencyMs;
+    }
+    public void setBatchTargetSendRate(double batchTargetSendRate) {
+        this.batchTargetSendRate = batchTargetSendRate;
+    }
+    public void setBufferMaxItems(int bufferMaxItems) {
+        this.bufferMaxItems = bufferMaxItems;
+    }
+    public void setBufferMaxBytes(long bufferMaxBytes) {
+        this.bufferMaxBytes = bufferMaxBytes;
+    }
+    public void setEncoderThreads(int encoderThreads) {
+        this.encoderThreads = encoderThreads;
+    }
     public void setSendQueueMaxBytes(long sendQueueMaxBytes) {
         this.sendQueueMaxBytes = sendQueueMaxBytes;
     }
+    public void setSendQueueFile(String sendQueueFile) {
+        this.sendQueueFile = sendQueueFile;
+    }
+    public void setSendQueueFileMaxBytes(long sendQueueFileMaxBytes) {
+        this.sendQueueFileMaxBytes = sendQueueFileMaxBytes;
+    }
+    public void setBackpressure(String backpressure) {
+        this.backpressure = backpressure;
+    }
+    public void setBackpressureTimeoutMs(long backpressureTimeoutMs) {
+        this.backpressureTimeoutMs = backpressureTimeoutMs;
+    }
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+    public void setMinRetryBackoffMs(long minRetryBackoffMs) {
+        this.minRetryBackoffMs = minRetryBackoffMs;
+    }
+    public void setMaxRetryBackoffMs(long maxRetryBackoffMs) {
+        this.maxRetryBackoffMs = maxRetryBackoffMs;
+    }
+    public void setRetryBudgetRatio(double retryBudgetRatio) {
+        this.retryBudgetRatio = retryBudgetRatio;
+    }
+    public void setSendRateLimitBytesPerSec(long sendRateLimitBytesPerSec) {
+        this.sendRateLimitBytesPerSec = sendRateLimitBytesPerSec;
+    }
 
     /**
      * "format" instead of "encoder" in the name allows to specify
@@ -215,6 +455,14 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
         this.encoder = encoder;
     }
 
+    /**
+     * "shedding" without a class uses level-based policy by default
+     */
+    @DefaultClass(LevelLoadSheddingPolicy.class)
+    public void setShedding(LoadSheddingPolicy shedding) {
+        this.shedding = shedding;
+    }
+
     HttpSender getSender() {
         return sender;
     }
@@ -240,5 +488,8 @@ public final class Loki4jAppender extends UnsynchronizedAppenderBase<ILoggingEve
     public void setUseDirectBuffers(boolean useDirectBuffers) {
         this.useDirectBuffers = useDirectBuffers;
     }
+    public void setOffHeapMessages(boolean offHeapMessages) {
+        this.offHeapMessages = offHeapMessages;
+    }
 
 }
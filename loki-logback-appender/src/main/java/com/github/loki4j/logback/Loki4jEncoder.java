@@ -1,6 +1,9 @@
 package com.github.loki4j.logback;
 
+import java.nio.charset.StandardCharsets;
+
 import com.github.loki4j.client.batch.LogRecordStream;
+import com.github.loki4j.client.batch.LogRecordStreamRegistry;
 import com.github.loki4j.client.pipeline.PipelineConfig.WriterFactory;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
@@ -18,10 +21,30 @@ public interface Loki4jEncoder extends ContextAware, LifeCycle {
 
     String eventToMessage(ILoggingEvent e);
 
+    /**
+     * Renders the message of the event encoded in UTF-8.
+     * Used instead of {@code eventToMessage()} if {@code getPreEncodeMessages()} is true
+     */
+    default byte[] eventToMessageUtf8(ILoggingEvent e) {
+        return eventToMessage(e).getBytes(StandardCharsets.UTF_8);
+    }
+
     WriterFactory getWriterFactory();
 
+    /**
+     * Registry of all the streams created by this encoder,
+     * or null if the encoder does not keep one
+     */
+    default LogRecordStreamRegistry getStreamRegistry() {
+        return null;
+    }
+
     boolean getSortByTime();
 
     boolean getStaticLabels();
 
+    default boolean getPreEncodeMessages() {
+        return false;
+    }
+
 }
@@ -7,6 +7,12 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.loki4j.client.batch.LogRecordStream;
+
 import static com.github.loki4j.logback.Generators.*;
 
 public class AbstractLoki4jEncoderTest {
@@ -173,4 +179,156 @@ public class AbstractLoki4jEncoderTest {
         assertEquals(124999, enc.timestampToNanos(1124));
         assertEquals(124999, enc.timestampToNanos(1124));
     }
+
+    @Test
+    public void testPreEncodeMessages() {
+        var eventsToEncode = new ILoggingEvent[] {
+            loggingEvent(100L, Level.INFO, "test.TestApp", "thread-1", "Test message 1", null),
+            loggingEvent(101L, Level.WARN, "test.TestApp", "thread-2", "спец \"символы\" 🏁", null),
+            loggingEvent(102L, Level.ERROR, "test.TestApp", "thread-1", "Test message 3", new RuntimeException("Test exception")),
+            loggingEvent(103L, Level.INFO, "test.TestApp", "thread-1", "x".repeat(100_000), null),
+        };
+        var plainEncoder = defaultToStringEncoder();
+        var encoder = defaultToStringEncoder();
+        encoder.setPreEncodeMessages(true);
+        withEncoder(plainEncoder, plain -> withEncoder(encoder, preEncoding -> {
+            for (var e : eventsToEncode)
+                assertEquals("same message as with layout",
+                    plain.eventToMessage(e),
+                    new String(preEncoding.eventToMessageUtf8(e), StandardCharsets.UTF_8));
+        }));
+
+        // exception handling is added even if it is not in the pattern
+        var noExEncoder = toStringEncoder(labelCfg("l=%level", ",", "=", true), messageCfg("%level | %msg"), false, false);
+        noExEncoder.setPreEncodeMessages(true);
+        withEncoder(noExEncoder, preEncoding -> {
+            var message = new String(preEncoding.eventToMessageUtf8(eventsToEncode[2]), StandardCharsets.UTF_8);
+            assertTrue("exception is rendered", message.contains("Test exception"));
+        });
+    }
+
+    @Test
+    public void testStructuredLabels() {
+        var eventsToEncode = new ILoggingEvent[] {
+            loggingEvent(100L, Level.INFO, "test.TestApp", "thread-1", "Test message 1", null),
+            loggingEvent(101L, Level.WARN, "test.TestApp", "thread-2", "Test message 2", null),
+            loggingEvent(102L, Level.INFO, "test.OtherApp", "thread-1", "Test message 3", new RuntimeException("Test exception")),
+            loggingEvent(103L, Level.INFO, "test.TestApp", "thread-3", "Test message 4", null),
+        };
+        var labelPattern = "level=%level,app=my-app,logger=%logger{20},thread=%thread";
+        var plainEncoder = toStringEncoder(labelCfg(labelPattern, ",", "=", true), messageCfg("%msg"), false, false);
+        var structuredLabel = labelCfg(labelPattern, ",", "=", true);
+        structuredLabel.setStructured(true);
+        var structuredEncoder = toStringEncoder(structuredLabel, messageCfg("%msg"), false, false);
+        withEncoder(plainEncoder, plain -> withEncoder(structuredEncoder, structured -> {
+            for (var e : eventsToEncode) {
+                var expected = plain.eventToStream(e);
+                var actual = structured.eventToStream(e);
+                assertArrayEquals("same labels", expected.labels, actual.labels);
+                assertSame("stream is reused", actual, structured.eventToStream(e));
+            }
+            assertEquals("same number of streams",
+                plain.getStreamRegistry().size(), structured.getStreamRegistry().size());
+        }));
+    }
+
+    @Test
+    public void testStreamOverflowPolicy() {
+        var eventsToEncode = new ILoggingEvent[] {
+            loggingEvent(100L, Level.INFO, "test.TestApp", "thread-1", "Test message 1", null),
+            loggingEvent(101L, Level.INFO, "test.TestApp", "thread-2", "Test message 2", null),
+            loggingEvent(102L, Level.INFO, "test.TestApp", "thread-3", "Test message 3", null),
+            loggingEvent(103L, Level.INFO, "test.TestApp", "thread-4", "Test message 4", null),
+        };
+        var labelPattern = "level=%level,app=my-app,thread=%thread";
+        for (var structured : new boolean[] {false, true}) {
+            var results = new HashMap<String, LogRecordStream[]>();
+            for (var policy : new String[] {"evict", "overflow", "dropLabel", "reject"}) {
+                var label = labelCfg(labelPattern, ",", "=", true);
+                label.setStructured(structured);
+                var encoder = toStringEncoder(label, messageCfg("%msg"), false, false);
+                encoder.setMaxStreams(2);
+                encoder.setStreamOverflowPolicy(policy);
+                withEncoder(encoder, enc -> {
+                    var streams = new LogRecordStream[eventsToEncode.length];
+                    for (int i = 0; i < eventsToEncode.length; i++)
+                        streams[i] = enc.eventToStream(eventsToEncode[i]);
+                    results.put(policy, streams);
+                });
+            }
+
+            var evict = results.get("evict");
+            for (int i = 0; i < evict.length; i++)
+                assertEquals("evict: thread label kept", "thread-" + (i + 1), evict[i].labels[5]);
+
+            var overflow = results.get("overflow");
+            assertEquals("overflow: first streams kept", "thread-2", overflow[1].labels[5]);
+            assertArrayEquals("overflow: overflow stream", new String[] {"overflow", "true"}, overflow[2].labels);
+            assertSame("overflow: single overflow stream", overflow[2], overflow[3]);
+
+            var dropLabel = results.get("dropLabel");
+            assertArrayEquals("dropLabel: thread label dropped",
+                new String[] {"level", "INFO", "app", "my-app"}, dropLabel[2].labels);
+            assertSame("dropLabel: same reduced stream", dropLabel[2], dropLabel[3]);
+
+            var reject = results.get("reject");
+            assertNotNull("reject: first streams kept", reject[1]);
+            assertNull("reject: new stream rejected", reject[2]);
+        }
+    }
+
+    @Test
+    public void testDropLabelLimit() {
+        var label = labelCfg("level=%level,app=my-app,thread=%thread", ",", "=", true);
+        var encoder = toStringEncoder(label, messageCfg("%msg"), false, false);
+        encoder.setMaxStreams(2);
+        encoder.setStreamOverflowPolicy("dropLabel");
+        withEncoder(encoder, enc -> {
+            enc.eventToStream(loggingEvent(100L, Level.INFO, "test.TestApp", "thread-1", "Test message 1", null));
+            enc.eventToStream(loggingEvent(101L, Level.INFO, "test.TestApp", "thread-2", "Test message 2", null));
+
+            var info = enc.eventToStream(loggingEvent(102L, Level.INFO, "test.TestApp", "thread-3", "Test message 3", null));
+            var warn = enc.eventToStream(loggingEvent(103L, Level.WARN, "test.TestApp", "thread-4", "Test message 4", null));
+            assertArrayEquals("thread label dropped", new String[] {"level", "INFO", "app", "my-app"}, info.labels);
+            assertArrayEquals("thread label dropped", new String[] {"level", "WARN", "app", "my-app"}, warn.labels);
+
+            var error = enc.eventToStream(loggingEvent(104L, Level.ERROR, "test.TestApp", "thread-5", "Test message 5", null));
+            assertArrayEquals("limit of reduced streams reached", new String[] {"overflow", "true"}, error.labels);
+            assertSame("existing reduced stream is used",
+                info, enc.eventToStream(loggingEvent(105L, Level.INFO, "test.TestApp", "thread-6", "Test message 6", null)));
+            assertEquals("number of streams is limited", 5, enc.getStreamRegistry().size());
+        });
+    }
+
+    @Test
+    public void testDropLabelWithNewLineInValues() {
+        var first = loggingEvent(100L, Level.INFO, "test.TestApp", "thread-1", "Test message 1", null);
+        first.setMDCPropertyMap(Map.of("app", "a", "env", "x"));
+        var second = loggingEvent(101L, Level.INFO, "test.TestApp", "thread-2", "Test message 2", null);
+        second.setMDCPropertyMap(Map.of("app", "a", "env", "x"));
+        // reduced label sets are different, but they look the same if joined by new lines
+        var third = loggingEvent(102L, Level.INFO, "test.TestApp", "thread-3", "Test message 3", null);
+        third.setMDCPropertyMap(Map.of("app", "a\nenv\nc", "env", "x"));
+        var fourth = loggingEvent(103L, Level.INFO, "test.TestApp", "thread-4", "Test message 4", null);
+        fourth.setMDCPropertyMap(Map.of("app", "a", "env", "c\nenv\nx"));
+
+        for (var structured : new boolean[] {false, true}) {
+            var label = labelCfg("thread=%thread,app=%mdc{app},env=%mdc{env}", ",", "=", true);
+            label.setStructured(structured);
+            var encoder = toStringEncoder(label, messageCfg("%msg"), false, false);
+            encoder.setMaxStreams(2);
+            encoder.setStreamOverflowPolicy("dropLabel");
+            withEncoder(encoder, enc -> {
+                enc.eventToStream(first);
+                enc.eventToStream(second);
+                var thirdStream = enc.eventToStream(third);
+                var fourthStream = enc.eventToStream(fourth);
+                assertArrayEquals("thread label dropped",
+                    new String[] {"app", "a\nenv\nc", "env", "x"}, thirdStream.labels);
+                assertArrayEquals("streams are not merged",
+                    new String[] {"app", "a", "env", "c\nenv\nx"}, fourthStream.labels);
+            });
+        }
+    }
+
 }
@@ -1,5 +1,7 @@
 package com.github.loki4j.logback;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Random;
 
 import com.github.loki4j.client.http.HttpHeaders;
@@ -70,6 +72,18 @@ public class JavaHttpAppenderTest {
         });
     }
 
+    @Test
+    public void testJavaHttpConcurrentSend() {
+        var appender = appender(1, 1000L, defaultToStringEncoder(), javaHttpSender(url));
+        appender.setEncoderThreads(2);
+        withAppender(appender, a -> {
+            a.append(events);
+            a.waitAllAppended();
+            assertEquals("all batches sent", 3, mockLoki.batches.size());
+            return null;
+        });
+    }
+
     @Test
     public void testJavaHttpSendWithTenantHeader() {
         var sender = javaHttpSender(url);
@@ -85,4 +99,41 @@ public class JavaHttpAppenderTest {
         });
     }
 
+    @Test
+    public void testJavaHttpSendQueueFileReplay() throws Exception {
+        var dir = Files.createTempDirectory("loki4j-appender");
+        var queueFile = dir.resolve("send-queue").toString();
+        try {
+            // the first batch is being sent, the others are waiting in the queue
+            mockLoki.responseDelayMs = 300L;
+            var crashed = appender(1, 1000L, defaultToStringEncoder(), javaHttpSender(url));
+            crashed.setSendQueueFile(queueFile);
+            crashed.setDrainOnStop(false);
+            withAppender(crashed, a -> {
+                a.append(events);
+                try { Thread.sleep(100L); } catch (InterruptedException e) { }
+                return null;
+            });
+
+            // wait for the mock to complete the pending request
+            Thread.sleep(400L);
+            mockLoki.reset();
+            var restarted = appender(1, 1000L, defaultToStringEncoder(), javaHttpSender(url));
+            restarted.setSendQueueFile(queueFile);
+            withAppender(restarted, a -> {
+                a.waitAllAppended();
+                assertEquals("all batches replayed", 3, mockLoki.batches.size());
+                var received = new StringBuilder();
+                for (var batch : mockLoki.batches)
+                    received.append(new String(batch));
+                for (int i = 1; i <= 3; i++)
+                    assertTrue("event " + i + " is not lost", received.indexOf("Test message " + i) >= 0);
+                return null;
+            });
+        } finally {
+            Files.deleteIfExists(Paths.get(queueFile));
+            Files.deleteIfExists(dir);
+        }
+    }
+
 }
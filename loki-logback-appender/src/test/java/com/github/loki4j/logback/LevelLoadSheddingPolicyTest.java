@@ -0,0 +1,39 @@
+package com.github.loki4j.logback;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+import static org.junit.Assert.*;
+import static com.github.loki4j.logback.Generators.*;
+
+public class LevelLoadSheddingPolicyTest {
+
+    private static boolean drop(LevelLoadSheddingPolicy policy, Level level, double fillRatio) {
+        return policy.shouldDrop(loggingEvent(100L, level, "test.TestApp", "thread-1", "msg", null), () -> fillRatio);
+    }
+
+    @Test
+    public void testDefaultThresholds() {
+        var policy = new LevelLoadSheddingPolicy();
+        for (var level : new Level[] { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR })
+            assertFalse("nothing is dropped: " + level, drop(policy, level, 0.49));
+
+        assertTrue("trace dropped", drop(policy, Level.TRACE, 0.5));
+        assertTrue("debug dropped", drop(policy, Level.DEBUG, 0.5));
+        assertFalse("info kept", drop(policy, Level.INFO, 0.79));
+        assertTrue("info dropped", drop(policy, Level.INFO, 0.8));
+        assertFalse("warn kept until the hard limit", drop(policy, Level.WARN, 1.0));
+        assertFalse("error kept until the hard limit", drop(policy, Level.ERROR, 1.0));
+    }
+
+    @Test
+    public void testFillRatioNotComputedForKeptLevels() {
+        var policy = new LevelLoadSheddingPolicy();
+        policy.setWarnThreshold(0.9);
+        var event = loggingEvent(100L, Level.ERROR, "test.TestApp", "thread-1", "msg", null);
+        assertFalse("error kept", policy.shouldDrop(event, () -> { throw new IllegalStateException(); }));
+        assertTrue("warn dropped", drop(policy, Level.WARN, 0.9));
+    }
+
+}
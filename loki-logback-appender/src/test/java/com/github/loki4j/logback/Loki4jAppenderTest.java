@@ -8,7 +8,9 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
 import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
 
@@ -65,6 +67,33 @@ public class Loki4jAppenderTest {
         });
     }
 
+    @Test
+    public void testPreEncodeMessages() {
+        var encoder = defaultToStringEncoder();
+        encoder.setPreEncodeMessages(true);
+        var sender = dummySender();
+        withAppender(appender(3, 1000L, encoder, sender), appender -> {
+            appender.append(events);
+            appender.waitAllAppended();
+            assertEquals("pre-encoded batch", expected, new String(sender.lastBatch(), encoder.charset));
+            return null;
+        });
+    }
+
+    @Test
+    public void testOffHeapMessages() {
+        var encoder = defaultToStringEncoder();
+        var sender = dummySender();
+        var appender = appender(3, 1000L, encoder, sender);
+        appender.setOffHeapMessages(true);
+        withAppender(appender, a -> {
+            a.append(events);
+            a.waitAllAppended();
+            assertEquals("off-heap batch", expected, new String(sender.lastBatch(), encoder.charset));
+            return null;
+        });
+    }
+
     @Test
     public void testBatchTimeout() {
         var encoder = defaultToStringEncoder();
@@ -216,6 +245,229 @@ public class Loki4jAppenderTest {
         appender.stop();
     }
 
+    /**
+     * Fills the pipeline up while the sender hangs, so the next event does not fit
+     */
+    private static Loki4jAppender fullAppender(StoppableHttpSender sender, String backpressure) {
+        var appender = appender(1, 4000L, defaultToStringEncoder(), sender);
+        appender.setBatchMaxBytes(120);
+        appender.setSendQueueMaxBytes(150);
+        appender.setBackpressure(backpressure);
+        appender.setBackpressureTimeoutMs(200L);
+        appender.start();
+
+        sender.client.wait.set(true);
+        for (var event : new ILoggingEvent[] { events[0], events[2], events[0], events[0], events[0], events[0] }) {
+            appender.append(event);
+            try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+        }
+        return appender;
+    }
+
+    @Test
+    public void testBlockingBackpressureTimeout() {
+        var sender = new StoppableHttpSender();
+        var appender = fullAppender(sender, "block");
+
+        var startedMs = System.currentTimeMillis();
+        appender.append(events[0]);
+        assertTrue("producer is blocked until timeout", System.currentTimeMillis() - startedMs >= 200L);
+        assertEquals("event dropped after timeout", 1, appender.droppedEventsCount());
+
+        sender.client.wait.set(false);
+        appender.stop();
+    }
+
+    @Test
+    public void testBlockForeverBackpressure() throws InterruptedException {
+        var sender = new StoppableHttpSender();
+        var appender = fullAppender(sender, "blockForever");
+
+        var producer = new Thread(() -> appender.append(events[1]));
+        producer.start();
+        producer.join(500L);
+        assertTrue("producer is blocked", producer.isAlive());
+
+        sender.client.wait.set(false);
+        producer.join(5000L);
+        assertFalse("producer is released once there is free space", producer.isAlive());
+        assertEquals("no events dropped", 0, appender.droppedEventsCount());
+
+        appender.stop();
+    }
+
+    @Test
+    public void testParallelEncoders() {
+        var encoder = defaultToStringEncoder();
+        var sender = new CollectingHttpSender();
+        var appender = appender(3, 4000L, encoder, sender);
+        appender.setEncoderThreads(2);
+        withAppender(appender, a -> {
+            // stream 0: INFO, stream 1: WARN
+            a.append(events[0], events[1], events[2], events[1], events[0], events[1]);
+            a.waitAllAppended();
+            return null;
+        });
+
+        var batches = sender.client.batches.stream().sorted().toArray(String[]::new);
+        assertArrayEquals("each encoder sends its own streams", new String[] {
+            "LogRecord [ts=100, stream=Stream [id=0, labels=[level, INFO, app, my-app]], message=l=INFO c=test.TestApp t=thread-1 | Test message 1 ]\n" +
+            "LogRecord [ts=100, stream=Stream [id=0, labels=[level, INFO, app, my-app]], message=l=INFO c=test.TestApp t=thread-1 | Test message 1 ]\n" +
+            "LogRecord [ts=107, stream=Stream [id=0, labels=[level, INFO, app, my-app]], message=l=INFO c=test.TestApp t=thread-1 | Test message 3 ]\n",
+            "LogRecord [ts=104, stream=Stream [id=1, labels=[level, WARN, app, my-app]], message=l=WARN c=test.TestApp t=thread-2 | Test message 2 ]\n" +
+            "LogRecord [ts=104, stream=Stream [id=1, labels=[level, WARN, app, my-app]], message=l=WARN c=test.TestApp t=thread-2 | Test message 2 ]\n" +
+            "LogRecord [ts=104, stream=Stream [id=1, labels=[level, WARN, app, my-app]], message=l=WARN c=test.TestApp t=thread-2 | Test message 2 ]\n"
+        }, batches);
+    }
+
+    @Test
+    public void testConcurrentSendByEncoders() {
+        var encoder = defaultToStringEncoder();
+        var sender = new CollectingHttpSender();
+        sender.client.delayMs = 50L;
+        var appender = appender(1, 4000L, encoder, sender);
+        appender.setEncoderThreads(2);
+        withAppender(appender, a -> {
+            for (int i = 0; i < 10; i++) {
+                a.append(loggingEvent(
+                    100L + i,
+                    i % 2 == 0 ? Level.INFO : Level.WARN,
+                    "test.TestApp",
+                    "thread-1",
+                    "Test message " + i,
+                    null));
+            }
+            a.waitAllAppended();
+            return null;
+        });
+
+        assertEquals("all batches sent", 10, sender.client.batches.size());
+        assertEquals("batches of different encoders are sent concurrently", 2, sender.client.maxConcurrency.get());
+        var lastTs = new long[] {-1L, -1L};
+        for (var batch : sender.client.batches) {
+            var stream = batch.contains("id=0") ? 0 : 1;
+            var ts = Long.parseLong(batch.substring(batch.indexOf("ts=") + 3, batch.indexOf(',')));
+            assertTrue("order within stream is preserved", ts > lastTs[stream]);
+            lastTs[stream] = ts;
+        }
+    }
+
+    private String[] appendAndCollect(Loki4jAppender appender, CollectingHttpSender sender, int count) {
+        withAppender(appender, a -> {
+            for (int i = 0; i < count; i++)
+                a.append(loggingEvent(100L + i, Level.INFO, "test.TestApp", "thread-1", "Test message " + i, null));
+            a.waitAllAppended();
+            return null;
+        });
+        return sender.client.batches.stream()
+            .map(b -> b.replaceAll("(?s).*(Test message \\d+).*", "$1"))
+            .toArray(String[]::new);
+    }
+
+    @Test
+    public void testRetryOnServerError() {
+        var sender = new CollectingHttpSender();
+        sender.client.failuresLeft.set(2);
+        var appender = appender(1, 4000L, defaultToStringEncoder(), sender);
+        appender.setMinRetryBackoffMs(10L);
+
+        var batches = appendAndCollect(appender, sender, 2);
+        assertArrayEquals("failed batch is sent before the next one",
+            new String[] { "Test message 0", "Test message 1" }, batches);
+        assertEquals("failed batch is retried", 4, sender.client.attempts.get());
+    }
+
+    @Test
+    public void testNoRetryOnClientError() {
+        var sender = new CollectingHttpSender();
+        sender.client.failuresLeft.set(1);
+        sender.client.failureStatus = 400;
+        var appender = appender(1, 4000L, defaultToStringEncoder(), sender);
+        appender.setMinRetryBackoffMs(10L);
+
+        var batches = appendAndCollect(appender, sender, 2);
+        assertArrayEquals("invalid batch is dropped", new String[] { "Test message 1" }, batches);
+        assertEquals("invalid batch is not retried", 2, sender.client.attempts.get());
+    }
+
+    @Test
+    public void testGiveUpAfterMaxRetries() {
+        var sender = new CollectingHttpSender();
+        sender.client.failuresLeft.set(3);
+        var appender = appender(1, 4000L, defaultToStringEncoder(), sender);
+        appender.setMinRetryBackoffMs(10L);
+        appender.setMaxRetries(2);
+
+        var batches = appendAndCollect(appender, sender, 2);
+        assertArrayEquals("failed batch is dropped", new String[] { "Test message 1" }, batches);
+        assertEquals("failed batch is retried", 4, sender.client.attempts.get());
+    }
+
+    @Test
+    public void testLoadShedding() {
+        var sender = new CollectingHttpSender();
+        var appender = appender(1, 4000L, defaultToStringEncoder(), sender);
+        appender.setShedding((e, fillRatio) -> e.getLevel() == Level.DEBUG && fillRatio.getAsDouble() >= 0.0);
+
+        withAppender(appender, a -> {
+            for (int i = 0; i < 4; i++)
+                a.append(loggingEvent(100L + i, i % 2 == 0 ? Level.INFO : Level.DEBUG,
+                    "test.TestApp", "thread-1", "Test message " + i, null));
+            a.waitAllAppended();
+            return null;
+        });
+        assertEquals("debug events are shed", 2, sender.client.batches.size());
+        for (var batch : sender.client.batches)
+            assertTrue("info events are kept", batch.contains("l=INFO"));
+    }
+
+    private static class CollectingHttpClient implements Loki4jHttpClient {
+        public ConcurrentLinkedQueue<String> batches = new ConcurrentLinkedQueue<>();
+        public volatile long delayMs = 0L;
+        public final AtomicInteger attempts = new AtomicInteger(0);
+        public final AtomicInteger failuresLeft = new AtomicInteger(0);
+        public volatile int failureStatus = 503;
+        private final AtomicInteger concurrency = new AtomicInteger(0);
+        public final AtomicInteger maxConcurrency = new AtomicInteger(0);
+
+        @Override
+        public LokiResponse send(ByteBuffer batch) {
+            attempts.incrementAndGet();
+            if (failuresLeft.getAndDecrement() > 0)
+                return new LokiResponse(failureStatus, "");
+            var current = concurrency.incrementAndGet();
+            maxConcurrency.accumulateAndGet(current, Math::max);
+            try { Thread.sleep(delayMs); } catch (InterruptedException e) { }
+            var bytes = new byte[batch.remaining()];
+            batch.get(bytes);
+            batches.offer(new String(bytes));
+            concurrency.decrementAndGet();
+            return new LokiResponse(204, "");
+        }
+
+        @Override
+        public void close() throws Exception { }
+
+        @Override
+        public HttpConfig getConfig() {
+            return defaultHttpConfig.build("test");
+        }
+    }
+
+    private static class CollectingHttpSender extends AbstractHttpSender {
+        public final CollectingHttpClient client = new CollectingHttpClient();
+
+        @Override
+        public HttpConfig.Builder getConfig() {
+            return defaultHttpConfig;
+        }
+
+        @Override
+        public Function<HttpConfig, Loki4jHttpClient> getHttpClientFactory() {
+            return cfg -> client;
+        }
+    }
+
     private static class StoppableHttpClient implements Loki4jHttpClient {
         public AtomicBoolean wait = new AtomicBoolean(false);
         public byte[] lastBatch;
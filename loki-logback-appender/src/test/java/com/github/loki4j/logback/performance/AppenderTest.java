@@ -2,7 +2,15 @@ package com.github.loki4j.logback.performance;
 
 import static com.github.loki4j.logback.Generators.*;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+import com.github.loki4j.client.http.HttpConfig;
+import com.github.loki4j.client.http.Loki4jHttpClient;
+import com.github.loki4j.client.http.LokiResponse;
+import com.github.loki4j.logback.AbstractHttpSender;
 
 import com.github.loki4j.logback.Loki4jEncoder;
 import com.github.loki4j.testkit.benchmark.Benchmarker;
@@ -85,4 +93,59 @@ public class AppenderTest {
         stats.forEach(System.out::println);
     }
 
+    @Test
+    @Category({PerformanceTests.class})
+    public void appendToSendLatency() throws Exception {
+        var events = generateEvents(1_000, 10);
+        var sender = new TimingHttpSender();
+        var appender = appender(1, 60_000L, defaultToStringEncoder(), sender);
+        appender.setVerbose(false);
+        appender.start();
+
+        var latenciesNs = new long[events.length];
+        for (int i = 0; i < events.length; i++) {
+            var appendedNs = System.nanoTime();
+            appender.doAppend(events[i]);
+            Long sentNs;
+            while ((sentNs = sender.sentNs.poll()) == null);
+            latenciesNs[i] = sentNs - appendedNs;
+            // let the pipeline threads go idle between events
+            Thread.sleep(5);
+        }
+        appender.stop();
+
+        Arrays.sort(latenciesNs);
+        System.out.println(String.format(
+            "Append-to-send latency: p50 = %.3f ms, p99 = %.3f ms, max = %.3f ms",
+            latenciesNs[latenciesNs.length / 2] / 1e+6,
+            latenciesNs[(int)(latenciesNs.length * 0.99)] / 1e+6,
+            latenciesNs[latenciesNs.length - 1] / 1e+6));
+    }
+
+    private static class TimingHttpSender extends AbstractHttpSender {
+        private final ConcurrentLinkedQueue<Long> sentNs = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public HttpConfig.Builder getConfig() {
+            return HttpConfig.builder();
+        }
+
+        @Override
+        public Function<HttpConfig, Loki4jHttpClient> getHttpClientFactory() {
+            return cfg -> new Loki4jHttpClient() {
+                @Override
+                public LokiResponse send(ByteBuffer batch) {
+                    sentNs.offer(System.nanoTime());
+                    return new LokiResponse(204, "");
+                }
+                @Override
+                public HttpConfig getConfig() {
+                    return cfg;
+                }
+                @Override
+                public void close() { }
+            };
+        }
+    }
+
 }
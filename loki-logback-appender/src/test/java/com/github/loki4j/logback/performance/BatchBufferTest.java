@@ -11,6 +11,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordStream;
+import com.github.loki4j.client.util.MpscRingBuffer;
 import com.github.loki4j.testkit.benchmark.Benchmarker;
 import com.github.loki4j.testkit.benchmark.Benchmarker.Benchmark;
 import com.github.loki4j.testkit.categories.PerformanceTests;
@@ -54,6 +55,12 @@ public class BatchBufferTest {
                         if (clqCounter.incrementAndGet() > capacity)
                             r.clear();
                     }),
+                Benchmark.of("mpsc",
+                    () -> new MpscRingBuffer<LogRecord>(capacity),
+                    (r, e) -> {
+                        if (!r.offer(eventToRecord(e)))
+                            while (r.poll() != null);
+                    }),
                 Benchmark.of("sal",
                     () -> new ArrayList<LogRecord>(capacity),
                     (r, e) -> {
@@ -91,6 +98,15 @@ public class BatchBufferTest {
                         if (clqCounter.incrementAndGet() > capacity)
                             r.clear();
                     }),
+                Benchmark.of("mpsc",
+                    () -> new MpscRingBuffer<LogRecord>(capacity),
+                    (r, e) -> {
+                        // only one thread at a time can act as a consumer
+                        if (!r.offer(eventToRecord(e)))
+                            synchronized (r) {
+                                while (r.poll() != null);
+                            }
+                    }),
                 Benchmark.of("sal",
                     () -> Collections.synchronizedList(new ArrayList<LogRecord>(capacity)),
                     (r, e) -> {
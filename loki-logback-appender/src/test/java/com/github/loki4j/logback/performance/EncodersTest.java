@@ -4,6 +4,7 @@ import static com.github.loki4j.logback.Generators.*;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
@@ -14,6 +15,7 @@ import com.github.loki4j.client.writer.JsonWriter;
 import com.github.loki4j.client.writer.ProtobufWriter;
 import com.github.loki4j.client.writer.Writer;
 import com.github.loki4j.logback.AbstractLoki4jEncoder;
+import com.github.loki4j.pkg.dslplatform.json.RawJsonWriter;
 import com.github.loki4j.testkit.benchmark.Benchmarker;
 import com.github.loki4j.testkit.benchmark.Benchmarker.Benchmark;
 import com.github.loki4j.testkit.categories.PerformanceTests;
@@ -115,4 +117,47 @@ public class EncodersTest {
         statsDyn.forEach(System.out::println);
     }
 
+    private static String nanosToStr(int nanos) {
+        var c = new char[6];
+        var rem = nanos;
+        for (int i = c.length - 1; i >= 0 ; i--) {
+            c[i] = (char)('0' + rem % 10);
+            rem = rem / 10;
+        }
+        return new String(c);
+    }
+
+    @Test
+    @Category({PerformanceTests.class})
+    public void timestampPerformance() throws Exception {
+        var rnd = new Random();
+        var records = Stream
+            .generate(() -> LogRecord.create(
+                1_600_000_000_000L + rnd.nextInt(Integer.MAX_VALUE), rnd.nextInt(1_000_000), null, ""))
+            .limit(1000)
+            .toArray(LogRecord[]::new);
+
+        var stats = Benchmarker.run(new Benchmarker.Config<LogRecord[]>() {{
+            this.runs = 50;
+            this.parFactor = 1;
+            this.generator = () -> Stream.generate(() -> records).limit(1000).iterator();
+            this.benchmarks = Arrays.asList(
+                Benchmark.of("stringConcat",
+                    () -> new RawJsonWriter(CAPACITY_BYTES),
+                    (w, rs) -> {
+                        for (var r : rs)
+                            w.writeAsciiString("" + r.timestampMs + nanosToStr(r.nanos));
+                        w.reset();
+                    }),
+                Benchmark.of("quotedNumber",
+                    () -> new RawJsonWriter(CAPACITY_BYTES),
+                    (w, rs) -> {
+                        for (var r : rs)
+                            w.writeQuotedNumber(r.timestampMs, r.nanos, 6);
+                        w.reset();
+                    }));
+        }});
+        stats.forEach(System.out::println);
+    }
+
 }
@@ -0,0 +1,74 @@
+package com.github.loki4j.logback.performance;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.github.loki4j.client.http.ByteBufferEntity;
+import com.github.loki4j.testkit.benchmark.Benchmarker;
+import com.github.loki4j.testkit.benchmark.Benchmarker.Benchmark;
+import com.github.loki4j.testkit.categories.PerformanceTests;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class HttpEntityTest {
+
+    private static int CAPACITY_BYTES = 4 * 1024 * 1024;
+
+    private static final OutputStream nullOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException { }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException { }
+    };
+
+    /**
+     * Previous approach: copy direct buffer to the heap array first
+     */
+    private static class CopyingWriter {
+        private byte[] bodyBuffer = new byte[0];
+
+        void write(ByteBuffer batch) throws IOException {
+            var len = batch.remaining();
+            if (len > bodyBuffer.length)
+                bodyBuffer = new byte[len];
+            batch.duplicate().get(bodyBuffer, 0, len);
+            new ByteArrayEntity(bodyBuffer, 0, len).writeTo(nullOutputStream);
+        }
+    }
+
+    @Test
+    @Category({PerformanceTests.class})
+    public void directBufferEntityPerformance() throws Exception {
+        var data = new byte[CAPACITY_BYTES];
+        new Random().nextBytes(data);
+        var batch = ByteBuffer.allocateDirect(CAPACITY_BYTES);
+        batch.put(data);
+        batch.flip();
+
+        var stats = Benchmarker.run(new Benchmarker.Config<ByteBuffer>() {{
+            this.runs = 50;
+            this.parFactor = 1;
+            this.generator = () -> Stream.generate(() -> batch).limit(1000).iterator();
+            this.benchmarks = Arrays.asList(
+                Benchmark.of("copyToHeap",
+                    () -> new CopyingWriter(),
+                    (w, b) -> {
+                        try { w.write(b); } catch (IOException e) { throw new RuntimeException(e); }
+                    }),
+                Benchmark.of("byteBufferEntity",
+                    () -> nullOutputStream,
+                    (out, b) -> {
+                        try { new ByteBufferEntity(b).writeTo(out); } catch (IOException e) { throw new RuntimeException(e); }
+                    }));
+        }});
+
+        stats.forEach(System.out::println);
+    }
+
+}
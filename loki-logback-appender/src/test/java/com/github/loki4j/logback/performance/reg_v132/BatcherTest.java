@@ -0,0 +1,58 @@
+package com.github.loki4j.logback.performance.reg_v132;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.github.loki4j.client.batch.Batcher;
+import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.batch.LogRecordStream;
+import com.github.loki4j.testkit.benchmark.Benchmarker;
+import com.github.loki4j.testkit.benchmark.Benchmarker.Benchmark;
+import com.github.loki4j.testkit.categories.PerformanceTests;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+public class BatcherTest {
+
+    private static LogRecord[] generateRecords(int count, int streamCount) {
+        var rnd = new Random(42L);
+        var streams = new LogRecordStream[streamCount];
+        for (int i = 0; i < streamCount; i++)
+            streams[i] = LogRecordStream.create(i, "level", "INFO", "tenant", "tenant-" + i);
+        var records = new LogRecord[count];
+        for (int i = 0; i < count; i++)
+            records[i] = LogRecord.create(i, 0, streams[rnd.nextInt(streamCount)], "message " + i);
+        return records;
+    }
+
+    @Test
+    @Category({PerformanceTests.class})
+    public void manyStreamsPerformance() throws Exception {
+        var batchSize = 1000;
+        var batch = new LogRecordBatch(batchSize);
+
+        var stats = Benchmarker.run(new Benchmarker.Config<LogRecord>() {{
+            this.runs = 50;
+            this.parFactor = 1;
+            this.generator = () -> Arrays.stream(generateRecords(100_000, 200)).iterator();
+            this.benchmarks = Arrays.asList(
+                Benchmark.of("v132a sizeCheck & add",
+                    () -> new BatcherV132a(batchSize, 1_000_000, 60 * 1000),
+                    (b, r) -> {
+                        b.checkSizeBeforeAdd(r, batch);
+                        b.add(r, batch);
+                    }),
+                Benchmark.of("new sizeCheck & add",
+                    () -> new Batcher(batchSize, 1_000_000, 60 * 1000),
+                    (b, r) -> {
+                        b.checkSizeBeforeAdd(r, batch);
+                        b.add(r, batch);
+                    })
+            );
+        }});
+
+        stats.forEach(System.out::println);
+    }
+}
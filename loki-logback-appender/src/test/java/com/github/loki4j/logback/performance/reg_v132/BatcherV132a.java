@@ -0,0 +1,225 @@
+package com.github.loki4j.logback.performance.reg_v132;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import com.github.loki4j.client.batch.BatchCondition;
+import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.batch.LogRecordStream;
+
+/**
+ * A component that is responsible for splitting a stream of log events into batches.
+ * The batch is cut based on the following criteria:
+ * <ul>
+ * <li> {@code maxItems} - if number of records reaches this limit
+ *
+ * <li> {@code maxSizeBytes} - if size in bytes (as counted by Loki) reaches this limit,
+ * applies only when {@code checkSizeBeforeAdd()} is called
+ *
+ * <li> {@code maxTimeoutMs} - if this timeout is passed since the last batch was sended,
+ * applies only when {@code drain()} is called
+ * </ul>
+ * Records are grouped by stream as they are added, so the resulting batch always
+ * contains all the records of one stream next to each other, in the order they
+ * were added. If {@code sortByTime} is set, records within each stream are also
+ * ordered by timestamp. Only streams that received records out of order are sorted.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class BatcherV132a {
+
+    private static final Comparator<LogRecord> compareByTime = (e1, e2) -> {
+        var tsCmp = Long.compare(e1.timestampMs, e2.timestampMs);
+        return tsCmp == 0 ? Integer.compare(e1.nanos, e2.nanos) : tsCmp;
+    };
+
+    private final int maxSizeBytes;
+    private final long maxTimeoutMs;
+    private final boolean sortByTime;
+    private final LogRecord[] items;
+    /**
+     * Index of the next item of the same stream, -1 for the last one
+     */
+    private final int[] nextInStream;
+    /**
+     * Items grouped by stream, used to prepare the resulting batch
+     */
+    private final LogRecord[] grouped;
+
+    private int index = 0;
+    private int sizeBytes = 0;
+    private HashMap<LogRecordStream, Segment> streams = new HashMap<>();
+    /**
+     * Segments in the order their streams were first added to the current batch.
+     * Segment objects are reused from batch to batch
+     */
+    private Segment[] segments = new Segment[16];
+    private int segmentCount = 0;
+
+
+    public BatcherV132a(int maxItems, int maxSizeBytes, long maxTimeoutMs) {
+        this(maxItems, maxSizeBytes, maxTimeoutMs, false);
+    }
+
+    public BatcherV132a(int maxItems, int maxSizeBytes, long maxTimeoutMs, boolean sortByTime) {
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.sortByTime = sortByTime;
+        this.items = new LogRecord[maxItems];
+        this.nextInStream = new int[maxItems];
+        this.grouped = new LogRecord[maxItems];
+    }
+
+    /**
+     * Checks if the given message is less or equal to max allowed size for a batch.
+     * This method doesn't affect the internal state of the Batcher.
+     * This method is thread-safe.
+     */
+    public boolean validateLogRecordSize(LogRecord r) {
+        return (r.messageUtf8SizeBytes + 24 + r.stream.utf8SizeBytes + 8) <= maxSizeBytes;
+    }
+
+    /**
+     * Loki limits max message size in bytes by comparing its size in uncompressed
+     * protobuf format to a value of setting {@code grpc_server_max_recv_msg_size}.
+     * <p>
+     * So it does not depend on the format Loki4j sends a batch in (json, compressed protobuf).
+     * <p>
+     * This method tries to estimate the size of the batch as it was in protobuf format
+     * without encoding it. For the batching purposes we only need this approximate size
+     * never to be less that real size as counted by Loki, otherwise the message will be dropped
+     * by Loki.
+     */
+    private long estimateSizeBytes(LogRecord r) {
+        long size = r.messageUtf8SizeBytes + 24;
+        if (!streams.containsKey(r.stream))
+            size += r.stream.utf8SizeBytes + 8;
+        return size;
+    }
+
+    /**
+     * Appends the item to the segment of its stream
+     */
+    private void link(int itemIndex) {
+        var record = items[itemIndex];
+        nextInStream[itemIndex] = -1;
+        var segment = streams.get(record.stream);
+        if (segment == null) {
+            segment = nextSegment();
+            segment.head = itemIndex;
+            streams.put(record.stream, segment);
+        } else {
+            nextInStream[segment.tail] = itemIndex;
+            if (sortByTime && segment.sorted && compareByTime.compare(items[segment.tail], record) > 0)
+                segment.sorted = false;
+        }
+        segment.tail = itemIndex;
+        segment.count++;
+    }
+
+    private Segment nextSegment() {
+        if (segmentCount == segments.length)
+            segments = Arrays.copyOf(segments, segmentCount * 2);
+        var segment = segments[segmentCount];
+        if (segment == null) {
+            segment = new Segment();
+            segments[segmentCount] = segment;
+        }
+        segmentCount++;
+        segment.count = 0;
+        segment.sorted = true;
+        return segment;
+    }
+
+    private void cutBatchAndReset(LogRecordBatch destination, BatchCondition condition) {
+        var pos = 0;
+        for (int s = 0; s < segmentCount; s++) {
+            var segment = segments[s];
+            var from = pos;
+            for (int i = segment.head; i >= 0; i = nextInStream[i])
+                grouped[pos++] = items[i];
+            if (!segment.sorted)
+                Arrays.sort(grouped, from, pos, compareByTime);
+        }
+        destination.initFrom(grouped, index, segmentCount, condition, sizeBytes);
+        Arrays.fill(grouped, 0, index, null);
+        Arrays.fill(items, 0, index, null);
+        index = 0;
+        sizeBytes = 0;
+        streams.clear();
+        segmentCount = 0;
+    }
+
+    /**
+     * Checks if given record can be added to batch without exceeding max bytes limit.
+     * Note that this method never adds an input record to the batch, you must call {@code add()}
+     * for this purpose.
+     * <p>
+     * If a valid record can not be added to batch without exceeding max bytes limit, batcher
+     * returns a completed batch without this record.
+     * <p>
+     * Otherwise, no action is performed.
+     * @param input Log record to check
+     * @param destination Resulting batch (if ready)
+     */
+    public void checkSizeBeforeAdd(LogRecord input, LogRecordBatch destination) {
+        var recordSizeBytes = estimateSizeBytes(input);
+        if (sizeBytes + recordSizeBytes > maxSizeBytes)
+            cutBatchAndReset(destination, BatchCondition.MAX_BYTES);
+    }
+
+    /**
+     * Adds given record to batch and returns a batch if max items limit is reached.
+     * @param input Log record to add
+     * @param destination Resulting batch (if ready)
+     */
+    public void add(LogRecord input, LogRecordBatch destination) {
+        items[index] = input;
+        sizeBytes += estimateSizeBytes(input);
+        link(index);
+        if (++index == items.length)
+            cutBatchAndReset(destination, BatchCondition.MAX_ITEMS);
+    }
+
+    /**
+     * Returns a batch if max timeout since the last batch was sended
+     * @param lastSentMs Timestamp when the last batch was sended
+     * @param destination Resulting batch (if ready)
+     */
+    public void drain(long lastSentMs, LogRecordBatch destination) {
+        final long now = System.currentTimeMillis();
+        if (index > 0 && now - lastSentMs > maxTimeoutMs)
+            cutBatchAndReset(destination, BatchCondition.DRAIN);
+    }
+
+    /**
+     * Returns time in milliseconds left until the current batch should be drained,
+     * or {@code Long.MAX_VALUE} if there is nothing to drain
+     * @param lastSentMs Timestamp when the last batch was sended
+     */
+    public long drainDelayMs(long lastSentMs) {
+        if (index == 0)
+            return Long.MAX_VALUE;
+        return Math.max(0L, lastSentMs + maxTimeoutMs + 1 - System.currentTimeMillis());
+    }
+
+    public int getCapacity() {
+        return items.length;
+    }
+
+    /**
+     * A chain of items that belong to the same stream
+     */
+    private static final class Segment {
+        int head;
+        int tail;
+        int count;
+        /**
+         * False if any item was added with timestamp less than the previous one
+         */
+        boolean sorted;
+    }
+
+}
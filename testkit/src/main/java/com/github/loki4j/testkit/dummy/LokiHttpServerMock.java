@@ -14,6 +14,10 @@ public class LokiHttpServerMock {
     public List<byte[]> batches = new ArrayList<>();
     public volatile byte[] lastBatch;
     public volatile Map<String, List<String>> lastHeaders;
+    /**
+     * Time to wait before responding to a request
+     */
+    public volatile long responseDelayMs = 0L;
 
     private final HttpServer server;
 
@@ -25,6 +29,13 @@ public class LokiHttpServerMock {
                 lastBatch = getBytesFromInputStream(is); //is.readAllBytes();
                 batches.add(lastBatch);
             }
+            if (responseDelayMs > 0) {
+                try {
+                    Thread.sleep(responseDelayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             httpExchange.sendResponseHeaders(204, -1);
         });
     }
@@ -49,5 +60,6 @@ public class LokiHttpServerMock {
     public void reset() {
         batches.clear();
         lastBatch = null;
+        responseDelayMs = 0L;
     }
 }